@@ -0,0 +1,107 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+/**
+  * Regression check of the binary format (see write and read in RegexNode).
+  *
+  * A random tree, made by the random operations of CheckSelector and given random
+  * attributes, is written and read back. The copy must write the same bytes and give
+  * the same text. The same random operations are then run on the tree and on the copy,
+  * which must still write the same bytes. Every 20th text is made longer than a block.
+  *
+  *   java CheckBinary [runs] [seed]
+  */
+public class CheckBinary {
+    public static void main(String[] args) throws IOException {
+	int runs=(args.length > 0 ? Integer.parseInt(args[0]) : 500);
+	long seed=(args.length > 1 ? Long.parseLong(args[1]) : 1);
+	RegexNode.define("<c>");
+	RegexNode.Context anchors=new RegexNode("").getContext();
+	int bad=0;
+	long steps=0;
+	for (int run=0;run<runs;run++) {
+	    Random r=new Random(seed+run);
+	    String text=CheckSelector.text(r).replace('c','é').replace('x','€');
+	    if (run % 20 == 0) {
+		StringBuilder sb=new StringBuilder();
+		while (sb.length() < 100000) sb.append(text).append('\n');
+		text=sb.toString();
+	    }
+	    RegexNode a=new RegexNode(new RegexNode.Context(anchors),text);
+	    int ops=r.nextInt(8);
+	    for (int op=0;op<ops;op++) CheckSelector.tryStep(a,r);
+	    attributes(a,r);
+	    byte[] written=write(a);
+	    RegexNode b=RegexNode.read(new RegexNode.Context(anchors),new DataInputStream(new ByteArrayInputStream(written)));
+	    String diff=null;
+	    if (! Arrays.equals(written,write(b))) {
+		diff="read";
+	    } else if (! a.getTextAll().equals(b.getTextAll())) {
+		diff="text";
+	    } else {
+		ops=1+r.nextInt(8);
+		for (int op=0;op<ops;op++) {
+		    long opSeed=r.nextLong();
+		    String ra=CheckSelector.tryStep(a,new Random(opSeed));
+		    String rb=CheckSelector.tryStep(b,new Random(opSeed));
+		    steps++;
+		    if (! ra.equals(rb) || ! Arrays.equals(write(a),write(b))) {
+			diff="step "+op+": "+ra+" / "+rb;
+			break;
+		    }
+		    if (ra.startsWith("exception")) break;
+		}
+	    }
+	    if (diff != null) {
+		bad++;
+		if (bad <= 3) System.out.format("Difference in run %d (%s) of \"%s\"\n",run,diff,text);
+	    }
+	}
+	System.out.format("CheckBinary: %d runs, %d steps, %d differences\n",runs,steps,bad);
+	if (bad > 0) System.exit(1);
+    }
+    static byte[] write(RegexNode node) throws IOException {
+	ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+	node.write(new DataOutputStream(bytes));
+	return bytes.toByteArray();
+    }
+    // attributes of every type the format takes, on some of the nodes
+    static void attributes(RegexNode root, Random r) {
+	ArrayList<RegexNode> nodes=root.makeList("...","*");
+	nodes.add(root);
+	for (RegexNode node : nodes) {
+	    if (r.nextInt(3) != 0) continue;
+	    RegexNode other=nodes.get(r.nextInt(nodes.size()));
+	    ArrayList<Object> list=new ArrayList<Object>();
+	    list.add("sé");
+	    list.add(other);
+	    list.add(null);
+	    node.setAttribute("string","value "+r.nextInt(100));
+	    node.setAttribute("int",r.nextInt());
+	    node.setAttribute("long",r.nextLong());
+	    node.setAttribute("double",r.nextDouble());
+	    node.setAttribute("boolean",r.nextBoolean());
+	    node.setAttribute("node",other);
+	    node.setAttribute("list",list);
+	}
+    }
+}
@@ -0,0 +1,89 @@
+import java.util.Random;
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+/**
+  * Regression check of hideLoop against the hideAny loop it replaces.
+  *
+  * Random texts of brackets, strings and lines are hidden with hideLoop, and with
+  *
+  *   while (regex.hideAny(...)) { }
+  *
+  * or, when a group is hidden in each new node, with
+  *
+  *   while (regex.hideAny("_Brackets", ...)) {
+  *       regex.hideNodeGroup("content", "<Content>", 1, "*", "_Brackets");
+  *       regex.setNodeNameAll("Brackets", "*", "_Brackets");
+  *   }
+  *
+  * The return values and the trees, node identifications included, must be the same.
+  *
+  *   java CheckHideLoop [runs] [seed]
+  */
+public class CheckHideLoop {
+    static final String brackets="\\(([^\\(\\)<Content>]*)\\)";
+
+    public static void main(String[] args) {
+	int runs=(args.length > 0 ? Integer.parseInt(args[0]) : 3000);
+	long seed=(args.length > 1 ? Long.parseLong(args[1]) : 1);
+	RegexNode.define("<Brackets>");
+	RegexNode.define("<Content>");
+	RegexNode.define("<String>");
+	RegexNode.define("<Line>");
+	RegexNode.Context anchors=new RegexNode("").getContext();
+	int bad=0;
+	for (int run=0;run<runs;run++) {
+	    Random r=new Random(seed+run);
+	    StringBuilder sb=new StringBuilder();
+	    int len=r.nextInt(100);
+	    String alphabet="((()) ab'\n";
+	    for (int ii=0;ii<len;ii++) sb.append(alphabet.charAt(r.nextInt(alphabet.length())));
+	    String text=sb.toString();
+	    int mode=r.nextInt(3);
+	    boolean group=r.nextBoolean();
+	    String[] path=(mode == 2 ? new String[] {"*","line"} : new String[] {"*"});
+	    RegexNode a=prepare(new RegexNode(new RegexNode.Context(anchors),text),mode);
+	    RegexNode b=prepare(new RegexNode(new RegexNode.Context(anchors),text),mode);
+	    boolean ha=false;
+	    boolean hb;
+	    if (group) {
+		while (a.hideAny("_Brackets",brackets,"<Brackets>",path)) {
+		    a.hideNodeGroup("content","<Content>",1,"*","_Brackets");
+		    a.setNodeNameAll("Brackets","*","_Brackets");
+		    ha=true;
+		}
+		hb=b.hideLoop("Brackets",brackets,"<Brackets>","content","<Content>",1,path);
+	    } else {
+		while (a.hideAny("Brackets",brackets,"<Brackets>",path)) ha=true;
+		hb=b.hideLoop("Brackets",brackets,"<Brackets>",path);
+	    }
+	    if (ha != hb || ! a.toString().equals(b.toString())) {
+		bad++;
+		if (bad <= 3) System.out.format("Difference in run %d (mode %d, group %s) of \"%s\":\n%s\n%s\n",
+					       run,mode,group,text,a.toString(),b.toString());
+	    }
+	}
+	System.out.format("CheckHideLoop: %d runs, %d differences\n",runs,bad);
+	if (bad > 0) System.exit(1);
+    }
+    // mode 0: plain text, 1: strings ignored and lines hidden, 2: as 1, loop only in lines
+    static RegexNode prepare(RegexNode regex, int mode) {
+	if (mode >= 1) {
+	    regex.hideAll("string","'[^'\\n]*'","<String>","*");
+	    regex.ignoreAll("string");
+	    regex.hideAll("line","[^\\n]+","<Line>","*");
+	}
+	return regex;
+    }
+}
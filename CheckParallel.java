@@ -0,0 +1,66 @@
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+/**
+  * Regression check of the parallel traversal (see Context.setParallel in RegexNode).
+  *
+  * The random operations of CheckSelector are run on two copies of a random text, one
+  * in a context without a pool and one in a context that splits every node with two
+  * or more children over a fork-join pool. The return values and the trees, node
+  * identifications included, must be the same. After an exception only the exception
+  * is compared, as a parallel traversal may have changed more of the tree (see childrenAll).
+  *
+  *   java CheckParallel [runs] [seed] [threads]
+  */
+public class CheckParallel {
+    public static void main(String[] args) {
+	int runs=(args.length > 0 ? Integer.parseInt(args[0]) : 2000);
+	long seed=(args.length > 1 ? Long.parseLong(args[1]) : 1);
+	int threads=(args.length > 2 ? Integer.parseInt(args[2]) : 4);
+	RegexNode.define("<c>");
+	RegexNode.Context anchors=new RegexNode("").getContext();
+	ForkJoinPool pool=new ForkJoinPool(threads);
+	int bad=0;
+	long steps=0;
+	for (int run=0;run<runs;run++) {
+	    Random r=new Random(seed+run);
+	    String text=CheckSelector.text(r);
+	    if (run % 10 == 0) text=text+text+text+text; // more children to split
+	    RegexNode.Context parallel=new RegexNode.Context(anchors);
+	    parallel.setParallel(pool,2);
+	    RegexNode a=new RegexNode(new RegexNode.Context(anchors),text);
+	    RegexNode b=new RegexNode(parallel,text);
+	    int ops=1+r.nextInt(16);
+	    for (int op=0;op<ops;op++) {
+		long opSeed=r.nextLong();
+		String ra=CheckSelector.tryStep(a,new Random(opSeed));
+		String rb=CheckSelector.tryStep(b,new Random(opSeed));
+		steps++;
+		boolean failed=ra.startsWith("exception");
+		if (! ra.equals(rb) || (! failed && ! a.toString().equals(b.toString()))) {
+		    bad++;
+		    if (bad <= 3) System.out.format("Difference in run %d, step %d of \"%s\":\n%s\n%s\n%s\n%s\n",
+						   run,op,text,ra,rb,a.toString(),b.toString());
+		    break;
+		}
+		if (failed) break;
+	    }
+	}
+	pool.shutdown();
+	System.out.format("CheckParallel: %d runs, %d steps, %d differences\n",runs,steps,bad);
+	if (bad > 0) System.exit(1);
+    }
+}
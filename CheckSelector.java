@@ -0,0 +1,127 @@
+import java.util.ArrayList;
+import java.util.Random;
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+/**
+  * Regression check of the node path selector (see NodeSelector in RegexNode).
+  *
+  * The same random operations are run on two copies of a random text. The first copy
+  * uses the default split mark, so node paths are matched by the selector automaton.
+  * The second uses "-" as split mark, which the selector does not take, so node paths
+  * are matched by the regular expression on the node names instead. The trees, the
+  * return values and the nodes found must be the same.
+  *
+  *   java CheckSelector [runs] [seed]
+  */
+public class CheckSelector {
+    static final String[] patterns={"a+","\\(([^()]*)\\)","b(c)?","'[^']*'","[ab]c","x","\\s+","(?m)^a","[^()]+","ab|ba"};
+    static final String[] replacements={"$0$0","Z","","$0-"};
+    static final String[] names={"n1","n2","n3","br","_br","content"};
+    static final String[] labels={"#","@",""};
+
+    public static void main(String[] args) {
+	int runs=(args.length > 0 ? Integer.parseInt(args[0]) : 2000);
+	long seed=(args.length > 1 ? Long.parseLong(args[1]) : 1);
+	RegexNode.define("<c>");
+	RegexNode.Context anchors=new RegexNode("").getContext();
+	int bad=0;
+	long steps=0;
+	for (int run=0;run<runs;run++) {
+	    Random r=new Random(seed+run);
+	    String text=text(r);
+	    RegexNode a=new RegexNode(new RegexNode.Context(anchors),text);
+	    RegexNode b=new RegexNode(new RegexNode.Context(anchors),text).splitMark('-');
+	    int ops=1+r.nextInt(16);
+	    for (int op=0;op<ops;op++) {
+		long opSeed=r.nextLong();
+		String ra=tryStep(a,new Random(opSeed));
+		String rb=tryStep(b,new Random(opSeed));
+		steps++;
+		if (! ra.equals(rb) || ! a.toString().equals(b.toString())) {
+		    bad++;
+		    if (bad <= 3) System.out.format("Difference in run %d, step %d of \"%s\":\n%s\n%s\n%s\n%s\n",
+						   run,op,text,ra,rb,a.toString(),b.toString());
+		    break;
+		}
+		if (ra.startsWith("exception")) break; // the tree may be half done
+	    }
+	}
+	System.out.format("CheckSelector: %d runs, %d steps, %d differences\n",runs,steps,bad);
+	if (bad > 0) System.exit(1);
+    }
+    static String text(Random r) {
+	StringBuilder sb=new StringBuilder();
+	int len=r.nextInt(120);
+	String alphabet="abcx ()'\n";
+	for (int ii=0;ii<len;ii++) sb.append(alphabet.charAt(r.nextInt(alphabet.length())));
+	return sb.toString();
+    }
+    static String[] path(Random r) {
+	String name=names[r.nextInt(names.length)];
+	String other=names[r.nextInt(names.length)];
+	switch (r.nextInt(8)) {
+	case 0:  return new String[] {"*"};
+	case 1:  return new String[] {name};
+	case 2:  return new String[] {"*",name};
+	case 3:  return new String[] {"...",name};
+	case 4:  return new String[] {other,name};
+	case 5:  return new String[] {"...",other,"*"};
+	case 6:  return new String[] {"$"};
+	default: return new String[] {"*","...",name};
+	}
+    }
+    static String tryStep(RegexNode node, Random r) {
+	try {
+	    return step(node,r);
+	} catch (RuntimeException e) {
+	    return "exception "+e.getClass().getName();
+	}
+    }
+    // one random operation, returns what it returned or found
+    static String step(RegexNode node, Random r) {
+	String[] path=path(r);
+	String name=names[r.nextInt(names.length)];
+	switch (r.nextInt(10)) {
+	case 0: case 1:
+	    node.hideAll(name,patterns[r.nextInt(patterns.length)],labels[r.nextInt(labels.length)],path);
+	    return "hideAll";
+	case 2:
+	    return "replaceAll "+node.replaceAll(patterns[r.nextInt(patterns.length)],replacements[r.nextInt(replacements.length)],path);
+	case 3:
+	    node.unhideAll(path);
+	    return "unhideAll";
+	case 4:
+	    node.ignoreAll(path);
+	    return "ignoreAll";
+	case 5:
+	    return "setNodeNameAll "+node.setNodeNameAll(name,path);
+	case 6: {
+	    int loops=0;
+	    while (loops++ < 10 && node.hideAny("_br","\\(([^()<c>]*)\\)","<c>","*")) {
+		node.hideNodeGroup("content","<c>",1,"*","_br");
+		node.setNodeNameAll("br","*","_br");
+	    }
+	    return "brackets "+loops;
+	}
+	case 7:
+	    return "count "+node.count("a",path);
+	default:
+	    StringBuilder found=new StringBuilder("makeList");
+	    ArrayList<RegexNode> list=node.makeList(path);
+	    for (RegexNode child : list) found.append(' ').append(child.getNodeName()).append('=').append(child.getText());
+	    return found.toString();
+	}
+    }
+}
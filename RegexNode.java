@@ -2,14 +2,47 @@ import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
+import java.util.TreeMap;
+import java.util.Iterator;
 import java.util.Vector;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Map.Entry;
 import java.util.AbstractMap.SimpleEntry;
-import java.io.FileOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.io.BufferedWriter;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.Path;
+import java.nio.file.Files;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.nio.file.StandardOpenOption;
 
 // This program is free software: you can redistribute it and/or modify
 // it under the terms of the GNU General Public License as published by
@@ -97,12 +130,13 @@ public final class RegexNode {
 
     public static final int noSubLevels = 0;
     public static final int allSubLevels = -1;
+    private static final String[] noPath=new String[0];
     /**
-     * original text
+     * original text, a String or a Slice of the text of an ancestor (see textSlice)
      */
-    private StringBuffer originalText;
+    private CharSequence originalText;
     /**
-     * Result of all replacements so far
+     * Result of all replacements so far, null until the text is first changed (see text())
      */
     private StringBuilder resultText;
 
@@ -115,23 +149,13 @@ public final class RegexNode {
      */
     private Pattern pattern;
     /**
-     * resultText start index for current match
+     * resultText/originalText start and end indexes and groups for current match
      */
-    private HashMap<Integer,Integer> matchStartIndexShifted=new HashMap<Integer,Integer>();
-    private HashMap<Integer,Integer> matchStartIndexOriginal=new HashMap<Integer,Integer>();
-    /**
-     * resultText end index for current match
-     */
-    private HashMap<Integer,Integer> matchEndIndexShifted=new HashMap<Integer,Integer>();
-    private HashMap<Integer,Integer> matchEndIndexOriginal=new HashMap<Integer,Integer>();
+    private MatchState match;
     /**
      * Number of groups for current match
      */
     private int nMatchGroups=-1;
-    /**
-     * groups for current match
-     */
-    private HashMap<Integer,String> matchGroups=new HashMap<Integer,String>();
     /**
      * offset between originalText and resultText for current match
      */
@@ -147,7 +171,7 @@ public final class RegexNode {
     /**
      * regex used in previous call to "seek"
      */
-    private StringBuffer oldPatternString=null;
+    private String oldPatternString=null;
     /**
      * The RegexNode node has a linked list of children. 
      * This is coded here to allow full control so that we may 
@@ -170,8 +194,23 @@ public final class RegexNode {
     private RegexNode firstChild;
     /**
      * "lastChild" points to the last child node (virtual node)
+     * Both are emptyFirst/emptyLast until the first child is added (see chain).
      */
     private RegexNode lastChild;
+    /**
+     * "childIndex" is the root of a treap over the children in sibling chain order,
+     * used to look up children by their parentNodeStartIndex.
+     * "indexOwner" is the node whose childIndex contains this node.
+     * "indexShift" is a pending shift of the parent indexes of this node and
+     * all nodes below it in the child index (see indexShiftFrom).
+     */
+    private RegexNode childIndex;
+    private RegexNode indexOwner;
+    private RegexNode indexLeft;
+    private RegexNode indexRight;
+    private RegexNode indexUp;
+    private int indexSize;
+    private int indexShift;
     /**
      * "startFoldNode/endFoldNode" is used to unfold and fold nodes
      */
@@ -210,48 +249,92 @@ public final class RegexNode {
     private String  _pattern=".*";
     private String  _replacement="$0";
     private String  _att="attribute";
-    private String[]  _path=new String[0]; 
+    private String[]  _path=noPath; 
     private int  _group=0;
     // <tag>;label:string;
     private Character _o=':'; // assign
     private Character _d=';'; // delimiter
-    private Character _a='¤'; // tag
+    private static final Character mark='¤'; // boxed once, '¤' is not in the Character cache
+    private Character _a=mark; // tag
     private Character _t=null; // node
-    private Character _s= '¤'; 
+    private Character _s=mark; 
     /**
-     * The "node" name for this node.
+     * The "node" name for this node, and its interned symbol (see symbolOf).
      */
     private String node="";
+    private int symbol=0;
+    /**
+     * Symbol table for node names, "" is symbol 0. Lookups take no lock; symbols are
+     * numbered by symbolNext.
+     */
+    private static final ConcurrentHashMap<String,Integer> symbolTable=new ConcurrentHashMap<String,Integer>();
+    private static final AtomicInteger symbolNext=new AtomicInteger();
+    static {
+	symbolTable.put("",symbolNext.getAndIncrement());
+    }
+    /**
+     * "nameIndex" (top node only) lists the nodes in the tree for each node name symbol.
+     * The lists may hold nodes that have been renamed or removed since, these are
+     * dropped when the list is used.
+     * "nameIndexedBy" is the top node whose nameIndex lists this node.
+     * "nameMark" marks nodes that are, or are above, a node with a given name (see markNamed).
+     * "nameListed" is used to drop duplicates from the lists.
+     */
+    private HashMap<Integer,ArrayList<RegexNode>> nameIndex;
+    private RegexNode nameIndexedBy;
+    private int nameMark;
+    private int nameListed;
+    private int nameMarkSymbol;
+    private int nameMarkEpoch;
+    private int nameMarkGen;
     //
     private int filecnt=0;
     //
     /**
-     * Identification counter.
+     * The "identification" for this node (only used for debugging).
      */
-    private static int maxidentification=-1;
+    private int identification;
     /**
-     * getNode-search counter.
+     * Anchors, counters and pattern cache of the tree (see Context).
      */
-    private static int maxsid=0;
+    private Context context;
     /**
-     * The "identification" for this node (only used for debugging).
+     * Context used by nodes made without one, and by the static methods.
      */
-    private int identification;
+    private static final Context shared=new Context();
     /**
-     * anchor names and their anchors.
+     * The firstChild and lastChild of all nodes without children. They are never
+     * changed, a node gets a pair of its own when it is given a child (see chain).
      */
-    private static LinkedHashMap<String,String> anchorMap=new LinkedHashMap<String,String>();
-    private static LinkedHashMap<String,Integer> anchorCnt=new LinkedHashMap<String,Integer>();
+    private static final RegexNode emptyFirst=new RegexNode(shared);
+    private static final RegexNode emptyLast=new RegexNode(shared);
+    static {
+	emptyFirst.nextSibling=emptyLast;
+	emptyLast.prevSibling=emptyFirst;
+    }
     /**
-     * number of anchors defined so far.
+     * Map to keep track of several simultaneous node-searches (depends on node)
      */
-    private static int nrAnchor=0;
+    private HashMap<Integer,RegexNode> nodeChildMap;
+    private HashMap<String,Integer> nodeSidMap;
     /**
-     * Map to keep track of several simultaneous node-searches (depends on node)
+     * Node path selector state of this node (see nodeMatch), valid while
+     * "nodeEpoch" of the context has not changed.
      */
-    private HashMap<Integer,RegexNode> nodeChildMap=new HashMap<Integer,RegexNode>();
-    private HashMap<String,Integer> nodeSidMap=new HashMap<String,Integer>();
-    private HashMap<String,Pattern> nodePatternMap=new HashMap<String,Pattern>();
+    private NodeSelector matchSelector;
+    private RegexNode matchRoot;
+    private int matchEpoch;
+    private int[] matchState;
+    /**
+     * Characters in resultText (see charBit), and in the text of this node and the nodes
+     * below, used to skip nodes where a pattern can not match (see mayMatch).
+     */
+    private long[] textBits;
+    private boolean textMasked=false;
+    private boolean textClean=false;  // originalText is the same as resultText
+    private long[] subBits;
+    private boolean subClean;         // all nodes below are textClean and not in a seek
+    private boolean subMasked=false;
     /**
      * Current child-node being node-searched
      */
@@ -263,7 +346,7 @@ public final class RegexNode {
     /**
      * Map to keep track of attributes.
      */
-    private LinkedHashMap<String,Object> attributes=new LinkedHashMap<String,Object>();
+    private LinkedHashMap<String,Object> attributes;
     /**
      * Types based on start/end index
      */
@@ -285,44 +368,81 @@ public final class RegexNode {
       *         The text that we want to search and process.
       */
     public RegexNode(String originalText) {
+	this(shared,originalText);
+    }
+    public RegexNode(String originalText, String nodeName) {
+	this(shared,originalText,nodeName);
+    }
+    public RegexNode(String originalText, Character o, Character d) {
+	this(shared,originalText,o,d);
+    }
+    public RegexNode(String originalText, Character o, Character d, Character a) {
+	this(shared,originalText,o,d,a);
+    }
+    public RegexNode(String originalText, Character o, Character d, Character t, RegexNode... nodes) {
+	this(shared,originalText,o,d,t,nodes);
+    }
+    public RegexNode(String originalText, Character o, Character d, Character a, Character t, RegexNode... nodes) {
+	this(shared,originalText,o,d,a,t,nodes);
+    }
+    /**
+     * Constructor for a node tree using its own context (anchors, counters and
+     * pattern cache), so that it can be processed independently of other trees.
+      * @param  context
+      *         The context used by the tree.
+      * @param  OriginalText
+      *         The text that we want to search and process.
+      */
+    public RegexNode(Context context, String originalText) {
+	this.context=context;
 	this.parentNode=null; // this is the top node
 	init(originalText);
     }
-    public RegexNode(String originalText, String nodeName) {
+    public RegexNode(Context context, String originalText, String nodeName) {
+	this.context=context;
 	this.parentNode=null; // this is the top node
 	init(originalText);
 	setNodeName(nodeName);
     }
-    public RegexNode(String originalText, Character o, Character d) {
+    public RegexNode(Context context, String originalText, Character o, Character d) {
+	this.context=context;
 	this.mark(o,d);
 	Character a=null;
 	Character t=null;
 	this.parentNode=null; // this is the top node
 	init(originalText);
-	decode_(getText(),-1,o,d,a,-1,t);
+	decode_(new Decoder(getText()),o,d,a,t);
 	this.mark(o,d,a);
     }
-    public RegexNode(String originalText, Character o, Character d, Character a) {
+    public RegexNode(Context context, String originalText, Character o, Character d, Character a) {
+	this.context=context;
 	this.mark(o,d,a);
 	Character t=null;
 	this.parentNode=null; // this is the top node
 	init(originalText);
-	decode_(getText(),-1,o,d,a,-1,t);
+	decode_(new Decoder(getText()),o,d,a,t);
     }
-    public RegexNode(String originalText, Character o, Character d, Character t, RegexNode... nodes) {
+    public RegexNode(Context context, String originalText, Character o, Character d, Character t, RegexNode... nodes) {
+	this.context=context;
 	Character a=null;
 	this.assignMark(o);
 	this.delimiterMark(d);
 	this.nodeMark(t);
 	this.parentNode=null; // this is the top node
 	init(originalText);
-	decode_(getText(),-1,o,d,a,-1,t,nodes);
+	decode_(new Decoder(getText()),o,d,a,t,nodes);
     }
-    public RegexNode(String originalText, Character o, Character d, Character a, Character t, RegexNode... nodes) {
+    public RegexNode(Context context, String originalText, Character o, Character d, Character a, Character t, RegexNode... nodes) {
+	this.context=context;
 	this.mark(o,d,a,t);
 	this.parentNode=null; // this is the top node
 	init(originalText);
-	decode_(getText(),-1,o,d,a,-1,t,nodes);
+	decode_(new Decoder(getText()),o,d,a,t,nodes);
+    }
+    // used to make emptyFirst and emptyLast
+    private RegexNode(Context context) {
+	this.context=context;
+	this.identification=-99;
     }
     /**
      * Private constructor used to create actual nodes in the RegexNode tree. 
@@ -338,13 +458,21 @@ public final class RegexNode {
     private RegexNode(RegexNode parentNode, 
 			Integer parentNodeStartIndex, 
 			Integer parentNodeEndIndex) {
+	this(parentNode,parentNodeStartIndex,parentNodeEndIndex,-1);
+    }
+    // as above, the text starts at "originalStartIndex" in the originalText of the parent, if not -1 (see textSlice)
+    private RegexNode(RegexNode parentNode, 
+			Integer parentNodeStartIndex, 
+			Integer parentNodeEndIndex,
+			int originalStartIndex) {
+	this.context=parentNode.context;
 	this.parentNode=parentNode;
 	this.parentNodeStartIndex=parentNodeStartIndex;
 	this.parentNodeEndIndex=parentNodeEndIndex;
 	if (parentNodeStartIndex == -1 & parentNodeEndIndex==-1) { // used to make firstChild and lastChild. 
-	    this.identification=-99;
+	    this.identification=-99; // markers only hold chain links, no text, match data or maps
 	} else {
-	    init(parentNode.resultText.substring(parentNodeStartIndex,parentNodeEndIndex));
+	    init(parentNode.textSlice(parentNodeStartIndex,parentNodeEndIndex,originalStartIndex));
 	}	
     }
 
@@ -363,6 +491,15 @@ public final class RegexNode {
 			RegexNode parentNode, 
 			Integer parentNodeStartIndex, 
 			Integer parentNodeEndIndex) {
+	this((parentNode != null ? parentNode.context : shared),originalText,parentNode,parentNodeStartIndex,parentNodeEndIndex);
+    }
+    // as above, in the given context (a node without a parent yet, see duplicate)
+    private RegexNode(Context context,
+		      String originalText,
+		      RegexNode parentNode, 
+		      Integer parentNodeStartIndex, 
+		      Integer parentNodeEndIndex) {
+	this.context=context;
 	this.parentNode=parentNode;
 	this.parentNodeStartIndex=parentNodeStartIndex;
 	this.parentNodeEndIndex=parentNodeEndIndex;
@@ -379,21 +516,17 @@ public final class RegexNode {
       *         The node which should be duplicated.
       */
     public RegexNode(RegexNode node) {
+	this.context=node.context;
 	this.parentNode=null; // this is the top node
 	init(node.getText());
 	setNodeName(node.getNodeName());
 	// copy groups
 	nMatchGroups=node.nMatchGroups;
-	for(int ii=0;ii<=nMatchGroups;ii++) {
-	    matchStartIndexShifted.put(ii,node.matchStartIndexShifted.get(ii));
-	    matchEndIndexShifted.put(ii,node.matchEndIndexShifted.get(ii));
-	    matchStartIndexOriginal.put(ii,node.matchStartIndexOriginal.get(ii));
-	    matchEndIndexOriginal.put(ii,node.matchEndIndexOriginal.get(ii));
-	    matchGroups.put(ii,node.matchGroups.get(ii));
-	}
+	match.copy(node.match,nMatchGroups);
 	RegexNode child=node.firstChild.nextSibling;
 	if (child!=node.lastChild) {
 	    RegexNode duplicateChild = child.duplicate(this);
+	    chain();
 	    lastChild.prependChain(duplicateChild);
 	    child=child.nextSibling;
 	}
@@ -487,52 +620,78 @@ public final class RegexNode {
 	Character a=this._a;
 	Character t=this._t;
 	removeChildren();
-	decode_(getText(),-1,o,d,a,-1,t);
+	decode_(new Decoder(getText()),o,d,a,t);
 	return this;
     }
     public RegexNode decode(Character o, Character d, Character a) {
 	this.mark(o,d,a);
 	Character t=null;
 	removeChildren();
-	decode_(getText(),-1,o,d,a,-1,t);
+	decode_(new Decoder(getText()),o,d,a,t);
 	return this;
     }
     public RegexNode decode(String code) {
+	return decode((CharSequence) code);
+    }
+    /**
+     * Decoding from any character sequence, for instance a CharBuffer over a mapped file.
+     */
+    public RegexNode decode(CharSequence code) {
 	Character o=this._o;
 	Character d=this._d;
 	Character a=this._a;
 	Character t=this._t;
 	removeChildren();
-	decode_(code,-1,o,d,a,-1,t);
+	decode_(new Decoder(code),o,d,a,t);
 	return this;
     }
-    public Integer decode(String code,Integer pos) {
+    /**
+     * Decoding while reading, the tree-format text is never held as a whole.
+     */
+    public RegexNode decode(Reader in) throws IOException {
 	Character o=this._o;
 	Character d=this._d;
 	Character a=this._a;
-	Character t=null;
-	return decode_(code,pos,o,d,a,-1,t); // pos=-1???
-    }
-    private Integer decode_(String code,Integer pos, Character o, Character d, Character a, Integer cnt, Character t, RegexNode... nodes) {
-	int len=code.length();
-	//System.out.format("O%s D%S A%S\n",o,d,a);
-	if (pos+1 >= code.length() & o != null) {
-	    System.out.format("Missing \'%s\' in \"%s\"\n",o,code); 
+	Character t=this._t;
+	removeChildren();
+	try {
+	    decode_(new Decoder(in),o,d,a,t);
+	} catch (UncheckedIOException e) {
+	    throw e.getCause();
 	}
-	pos=setNodeName(code,pos,o,d,a);
-	if (pos+1 >= code.length() & d != null) {
-	    System.out.format("Missing \'%s\' in \"%s\"\n",d,code); 
+	return this;
+    }
+    public RegexNode decode(Path file) throws IOException {
+	try (Reader in=Files.newBufferedReader(file,StandardCharsets.UTF_8)) {
+	    return decode(in);
 	}
-	pos=setOriginalText(code,pos,o,d,a);
+    }
+    /**
+     * Decoding from position pos+1 in code.
+     * @return  cnt+pos*1000, where pos is the position of the last character read.
+     */
+    public Integer decode(String code,Integer pos) {
+	Character o=this._o;
+	Character d=this._d;
+	Character a=this._a;
+	Character t=null;
+	Decoder in=new Decoder(code);
+	in.pos=pos;
+	decode_(in,o,d,a,t);
+	return (in.cnt+in.pos*1000);
+    }
+    private void decode_(Decoder in, Character o, Character d, Character a, Character t, RegexNode... nodes) {
+	setNodeName(in.next(o));
+	useOriginalString(in.next(d));
 	String oText=getText();
 	if (t != null) {
-	    if (nodes.length > cnt+1) {
+	    if (nodes.length > in.cnt+1) {
 		oText=getText();
 		for (int ii = -1; (ii = oText.indexOf(t, ii + 1)) != -1; ) {
 		    RegexNode child = new RegexNode(this,ii,ii+1);
 		    insertChild(child);
-		    cnt=cnt+1;
-		    nodes[cnt].replace(child);
+		    in.cnt=in.cnt+1;
+		    nodes[in.cnt].replace(child);
 		}
 	    }
 	}
@@ -540,37 +699,80 @@ public final class RegexNode {
 	    for (int ii = -1; (ii = oText.indexOf(a, ii + 1)) != -1; ) {
 		RegexNode child = new RegexNode(this,ii,ii+1);
 		insertChild(child);
-		Integer ret=child.decode_(code,pos,o,d,a,cnt,t,nodes);
-		cnt=ret%1000;
-		pos=(ret/1000);
-		if (cnt==999) {
-		    cnt=-1;
-		    pos=pos+1;
-		} else if (cnt < -1) {
-		    cnt=cnt+1000;
-		    pos=-1;
-		}
-		//System.out.format("Return %d %d %d\n",ret,cnt,pos);
+		child.decode_(in,o,d,a,t,nodes);
 	    }
 	}
-	this.resultText=new StringBuilder(originalText);
-	return (cnt+pos*1000);
-    }
-    private Integer setNodeName(String code, Integer pos, Character o, Character d, Character a) {
-	Integer ii=code.substring(pos+1).indexOf(o);
-	String nodeName=code.substring(pos+1,pos+ii+1);
-	setNodeName(nodeName);
-	return pos+ii+1;
+	this.resultText=null;
+	textReset();
     }
-    private Integer setOriginalText(String code, Integer pos, Character o, Character d, Character a) {
-	Integer ii=code.substring(pos+1).indexOf(d);
-	if (ii==-1) {
-	    System.out.format("Unable to find \'"+d+"\' in string: \"%s\" (%d) %s\n",
-			      code.substring(pos+1),pos,code);
+    /**
+     * Reads tree-format text for decode_, from a CharSequence or a Reader. The text is
+     * read once, from the start to the end; pos is the position of the last character
+     * read, and cnt the last of the replacement nodes used.
+     */
+    private static final class Decoder {
+	private final CharSequence code;
+	private final Reader in;
+	private final char[] buffer;
+	private int length;   // characters in buffer
+	private int next;     // next character in buffer
+	private int pos=-1;
+	private int cnt=-1;
+	private Decoder(CharSequence code) {
+	    this.code=code;
+	    this.in=null;
+	    this.buffer=null;
+	}
+	private Decoder(Reader in) {
+	    this.code=null;
+	    this.in=in;
+	    this.buffer=new char[8192];
+	}
+	/**
+	 * @return the text up to the next stop character, which is read too.
+	 */
+	private String next(char stop) {
+	    if (code != null) {
+		int end=indexOf(stop);
+		if (end == -1) throw missing(stop);
+		String text=code.subSequence(pos+1,end).toString();
+		pos=end;
+		return text;
+	    }
+	    StringBuilder text=new StringBuilder();
+	    while (true) {
+		if (next == length && ! fill()) throw missing(stop);
+		int start=next;
+		while (next < length && buffer[next] != stop) next++;
+		text.append(buffer,start,next-start);
+		pos=pos+next-start;
+		if (next < length) {
+		    next++;
+		    pos++;
+		    return text.toString();
+		}
+	    }
+	}
+	private int indexOf(char stop) {
+	    if (code instanceof String) return ((String) code).indexOf(stop,pos+1);
+	    for (int ii=pos+1;ii<code.length();ii++) {
+		if (code.charAt(ii) == stop) return ii;
+	    }
+	    return -1;
+	}
+	private boolean fill() {
+	    try {
+		length=in.read(buffer);
+	    } catch (IOException e) {
+		throw new UncheckedIOException(e);
+	    }
+	    next=0;
+	    if (length < 0) length=0;
+	    return length > 0;
+	}
+	private IllegalStateException missing(char stop) {
+	    return new IllegalStateException(String.format("Missing '%s' after position %d",stop,pos));
 	}
-	String oText=code.substring(pos+1,pos+ii+1);
-	useOriginalString(oText);
-	return pos+ii+1;
     }
     /**
      * Encoding nodeTree. Note, This replaces all labels by "¤".
@@ -578,22 +780,877 @@ public final class RegexNode {
      *         The String representation of the nodeTree.
      */
     public String encode() {
+	StringBuilder s=new StringBuilder();
+	try {
+	    encode(s);
+	} catch (IOException e) { // never thrown by StringBuilder
+	    throw new IllegalStateException(e);
+	}
+	return s.toString();
+    }
+    /**
+     * Encoding nodeTree directly into a StringBuilder, Writer etc. Note, This replaces all labels by "¤".
+     * @param out
+     *         where the String representation of the nodeTree is written.
+     */
+    public void encode(Appendable out) throws IOException {
 	Character o=this._o;
 	Character d=this._d;
 	Character a=this._a;
 	setLabelAll(String.valueOf(a));
-	String s=encode_(o,a,d);
-	s=s+o+d+a;
-	return s;
+	encode_(out,o,a,d);
+	out.append(o).append(d).append(a);
     }
-    private String encode_(Character o, Character a, Character d) {
-	String s=getNodeName() + o + getText()+d;
+    private void encode_(Appendable out, Character o, Character a, Character d) throws IOException {
+	out.append(getNodeName()).append(o).append(text()).append(d);
 	RegexNode child=firstChild.nextSibling;
 	while(child != lastChild) {
-	    s=s+child.encode_(o,a,d);
+	    child.encode_(out,o,a,d);
 	    child=child.nextSibling;
 	}
-	return s;
+    }
+    //
+    //******************** B I N A R Y   F O R M A T ******************
+    //
+    private static final int binaryMagic=0x52674e64; // "RgNd"
+    private static final int binaryVersion=2;
+    /**
+     * Writes the tree below this node in the binary format, which keeps the node names,
+     * texts, match groups, attributes, ignored and fold state. Unlike encode, the tree
+     * is left as it is. Texts are length prefixed, numbers are varints and node names
+     * are written once, in a symbol table. The bytes are streamed in blocks (see Binary),
+     * so the size of the tree is not limited. Fold nodes and attribute values that are
+     * nodes outside the tree are read back as null.
+     * @param out
+     *         where the tree is written, for instance a DataOutputStream.
+     */
+    public void write(DataOutput out) throws IOException {
+	ArrayList<String> names=new ArrayList<String>();
+	int[] nameOf=new int[symbolCount()]; // position in names by symbol
+	Arrays.fill(nameOf,-1);
+	IdentityHashMap<RegexNode,Integer> ordinal=new IdentityHashMap<RegexNode,Integer>();
+	int size=binaryScan(names,nameOf,ordinal);
+	if (! ordinal.isEmpty()) binaryNumber(ordinal,0);
+	out.writeInt(binaryMagic);
+	out.writeInt(binaryVersion);
+	Binary bin=new Binary(out);
+	try {
+	    bin.varint(names.size());
+	    for (String name : names) bin.text(name);
+	    bin.varint(size);
+	    binaryWrite_(bin,nameOf,ordinal);
+	    bin.finish();
+	} catch (UncheckedIOException e) {
+	    throw e.getCause();
+	}
+    }
+    /**
+     * Writes the tree below this node to a file in the binary format (see write(DataOutput)).
+     */
+    public void write(Path file) throws IOException {
+	try (DataOutputStream out=new DataOutputStream(new BufferedOutputStream(
+		 Channels.newOutputStream(FileChannel.open(file,StandardOpenOption.CREATE,
+							   StandardOpenOption.TRUNCATE_EXISTING,
+							   StandardOpenOption.WRITE)),65536))) {
+	    write(out);
+	}
+    }
+    /**
+     * Reads a tree written by write, in the shared context. The nodes get new identifications.
+     */
+    public static RegexNode read(DataInput in) throws IOException {
+	return read(shared,in);
+    }
+    public static RegexNode read(Context context, DataInput in) throws IOException {
+	if (in.readInt() != binaryMagic) throw new IOException("Not a RegexNode tree");
+	int version=in.readInt();
+	if (version != binaryVersion) throw new IOException(String.format("Unknown RegexNode tree version %d",version));
+	Binary bin=new Binary(in);
+	String[] names=new String[bin.readVarint()];
+	int[] symbols=new int[names.length];
+	for (int ii=0;ii<names.length;ii++) {
+	    names[ii]=bin.readText();
+	    symbols[ii]=symbolOf(names[ii]);
+	}
+	int size=bin.readVarint();
+	ArrayList<RegexNode> nodes=new ArrayList<RegexNode>(Math.min(size,1<<20));
+	ArrayList<int[]> folds=new ArrayList<int[]>();     // node, start and end fold node
+	ArrayList<Object[]> refs=new ArrayList<Object[]>(); // node values of attributes: container, key, node
+	RegexNode root=binaryRead_(context,null,bin,names,symbols,nodes,folds,refs);
+	bin.finish();
+	context.nodeEpoch++;
+	for (int[] fold : folds) {
+	    nodes.get(fold[0]).startFoldNode=binaryNode(nodes,fold[1]);
+	    nodes.get(fold[0]).endFoldNode=binaryNode(nodes,fold[2]);
+	}
+	for (Object[] ref : refs) {
+	    RegexNode value=binaryNode(nodes,(Integer) ref[2]);
+	    if (ref[0] instanceof RegexNode) {
+		((RegexNode) ref[0]).setAttribute((String) ref[1],value);
+	    } else {
+		@SuppressWarnings("unchecked") ArrayList<Object> list=(ArrayList<Object>) ref[0];
+		list.set((Integer) ref[1],value);
+	    }
+	}
+	return root;
+    }
+    public static RegexNode read(Path file) throws IOException {
+	return read(shared,file);
+    }
+    public static RegexNode read(Context context, Path file) throws IOException {
+	try (DataInputStream in=new DataInputStream(new BufferedInputStream(Files.newInputStream(file),65536))) {
+	    return read(context,in);
+	}
+    }
+    // this node and the nodes below, in the order they are written
+    private void binaryNodes(ArrayList<RegexNode> nodes) {
+	nodes.add(this);
+	RegexNode child=firstChild.nextSibling;
+	while (child != lastChild) {
+	    child.binaryNodes(nodes);
+	    child=child.nextSibling;
+	}
+    }
+    // counts the nodes, and collects the node names and the nodes that are referred to (folds and attributes)
+    private int binaryScan(ArrayList<String> names, int[] nameOf, IdentityHashMap<RegexNode,Integer> ordinal) {
+	if (nameOf[symbol] == -1) {
+	    nameOf[symbol]=names.size();
+	    names.add(node);
+	}
+	if (startFoldNode != null) ordinal.put(startFoldNode,-1);
+	if (endFoldNode != null) ordinal.put(endFoldNode,-1);
+	if (attributes != null) {
+	    for (Object value : attributes.values()) binaryScan(value,ordinal);
+	}
+	int size=1;
+	RegexNode child=firstChild.nextSibling;
+	while (child != lastChild) {
+	    size=size+child.binaryScan(names,nameOf,ordinal);
+	    child=child.nextSibling;
+	}
+	return size;
+    }
+    private static void binaryScan(Object value, IdentityHashMap<RegexNode,Integer> ordinal) {
+	if (value instanceof RegexNode) {
+	    ordinal.put((RegexNode) value,-1);
+	} else if (value instanceof ArrayList<?>) {
+	    for (Object element : (ArrayList<?>) value) binaryScan(element,ordinal);
+	}
+    }
+    // gives the nodes that are referred to their position in the order they are written
+    private int binaryNumber(IdentityHashMap<RegexNode,Integer> ordinal, int next) {
+	if (ordinal.containsKey(this)) ordinal.put(this,next);
+	next++;
+	RegexNode child=firstChild.nextSibling;
+	while (child != lastChild) {
+	    next=child.binaryNumber(ordinal,next);
+	    child=child.nextSibling;
+	}
+	return next;
+    }
+    private void binaryWrite_(Binary out, int[] nameOf, IdentityHashMap<RegexNode,Integer> ordinal) {
+	boolean same=sameText();
+	out.varint(nameOf[symbol]);
+	out.varint((ignored ? 1 : 0) | (unfold ? 2 : 0) | (same ? 0 : 4) | (attributes == null ? 0 : 8));
+	out.signed(parentNodeStartIndex);
+	out.signed(parentNodeEndIndex);
+	out.text(originalText);
+	if (! same) out.text(resultText);
+	out.signed(nMatchGroups);
+	for (int ii=0;ii<=Math.max(0,nMatchGroups);ii++) { // group 0 is set even without a match
+	    out.signed(match.start(ii));
+	    out.signed(match.end(ii));
+	    out.signed(match.startOriginal(ii));
+	    out.signed(match.endOriginal(ii));
+	    if (ii > nMatchGroups || ! match.hasText(ii)) { // without a match the text of group 0 may be left from an old one
+		out.varint(0);
+	    } else if (match.sameText(ii,originalText)) {
+		out.varint(2);
+	    } else {
+		out.varint(1);
+		out.text(match.group(ii));
+	    }
+	}
+	out.signed(binaryOrdinal(ordinal,startFoldNode));
+	out.signed(binaryOrdinal(ordinal,endFoldNode));
+	if (attributes != null) {
+	    out.varint(attributes.size());
+	    for (Map.Entry<String,Object> entry : attributes.entrySet()) {
+		out.text(entry.getKey());
+		writeValue(out,entry.getKey(),entry.getValue(),ordinal);
+	    }
+	}
+	out.varint(indexSize(childIndex));
+	indexFlush(childIndex); // the children write their parent indexes
+	RegexNode child=firstChild.nextSibling;
+	while (child != lastChild) {
+	    child.binaryWrite_(out,nameOf,ordinal);
+	    child=child.nextSibling;
+	}
+    }
+    /**
+      * Reads a node and the nodes below. The nodes are put together directly: the names
+      * are set without the name index (a new tree has none), each node is appended to the
+      * sibling chain of its parent, and the child index is built once all children are read.
+      */
+    private static RegexNode binaryRead_(Context context, RegexNode parent, Binary in, String[] names, int[] symbols,
+					 ArrayList<RegexNode> nodes, ArrayList<int[]> folds,
+					 ArrayList<Object[]> refs) throws IOException {
+	int name=in.readVarint();
+	if (name >= names.length) throw new IOException(String.format("Bad node name %d in RegexNode tree",name));
+	int flags=in.readVarint();
+	int startIndex=in.readSigned();
+	int endIndex=in.readSigned();
+	String text=in.readText();
+	RegexNode node=(parent == null ? new RegexNode(context,text) : new RegexNode(context,text,parent,startIndex,endIndex));
+	if ((flags & 4) != 0) {
+	    node.resultText=new StringBuilder(in.readText());
+	    node.textClean=false;
+	}
+	node.node=names[name];
+	node._node=names[name];
+	node.symbol=symbols[name];
+	node.ignored=(flags & 1) != 0;
+	node.unfold=(flags & 2) != 0;
+	node.nMatchGroups=in.readSigned();
+	StringBuilder source=null; // the text of the node followed by the other group texts
+	for (int ii=0;ii<=Math.max(0,node.nMatchGroups);ii++) {
+	    int start=in.readSigned();
+	    int end=in.readSigned();
+	    node.match.setShifted(ii,start,end);
+	    node.match.setOriginal(ii,in.readSigned(),in.readSigned());
+	    switch (in.readVarint()) {
+	    case 0:
+		node.match.setText(ii,-1,-1);
+		break;
+	    case 2:
+		node.match.setText(ii,0,text.length());
+		break;
+	    default:
+		if (source == null) source=new StringBuilder(text);
+		int at=source.length();
+		source.append(in.readText());
+		node.match.setText(ii,at,source.length());
+	    }
+	}
+	node.match.setSource(source == null ? text : source.toString());
+	nodes.add(node);
+	int startFold=in.readSigned();
+	int endFold=in.readSigned();
+	if (startFold != -1 || endFold != -1) folds.add(new int[] {nodes.size()-1,startFold,endFold});
+	if ((flags & 8) != 0) {
+	    int size=in.readVarint();
+	    for (int ii=0;ii<size;ii++) {
+		String attName=in.readText();
+		node.setAttribute(attName,readValue(in,node,attName,refs));
+	    }
+	}
+	if (parent != null) {
+	    parent.chain();
+	    RegexNode last=parent.lastChild;
+	    node.prevSibling=last.prevSibling;
+	    node.nextSibling=last;
+	    last.prevSibling.nextSibling=node;
+	    last.prevSibling=node;
+	}
+	int children=in.readVarint();
+	for (int ii=0;ii<children;ii++) binaryRead_(context,node,in,names,symbols,nodes,folds,refs);
+	if (children > 0) node.indexBuild();
+	return node;
+    }
+    private static int binaryOrdinal(IdentityHashMap<RegexNode,Integer> ordinal, RegexNode node) {
+	Integer ii=(node == null ? null : ordinal.get(node));
+	return (ii == null ? -1 : ii);
+    }
+    private static RegexNode binaryNode(ArrayList<RegexNode> nodes, int ordinal) {
+	return (ordinal < 0 || ordinal >= nodes.size() ? null : nodes.get(ordinal));
+    }
+    // attribute values: null, String, Integer, Long, Double, Boolean, RegexNode and ArrayList of these
+    private void writeValue(Binary out, String attName, Object value,
+			    IdentityHashMap<RegexNode,Integer> ordinal) {
+	if (value == null) {
+	    out.varint(0);
+	} else if (value instanceof String) {
+	    out.varint(1);
+	    out.text((String) value);
+	} else if (value instanceof Integer) {
+	    out.varint(2);
+	    out.signed((Integer) value);
+	} else if (value instanceof Long) {
+	    out.varint(3);
+	    out.fixed((Long) value);
+	} else if (value instanceof Double) {
+	    out.varint(4);
+	    out.fixed(Double.doubleToLongBits((Double) value));
+	} else if (value instanceof Boolean) {
+	    out.varint(5);
+	    out.varint((Boolean) value ? 1 : 0);
+	} else if (value instanceof RegexNode) {
+	    out.varint(6);
+	    out.signed(binaryOrdinal(ordinal,(RegexNode) value));
+	} else if (value instanceof ArrayList<?>) {
+	    ArrayList<?> list=(ArrayList<?>) value;
+	    out.varint(7);
+	    out.varint(list.size());
+	    for (Object element : list) writeValue(out,attName,element,ordinal);
+	} else {
+	    throw new IllegalStateException(String.format("Attribute \"%s\" of node %d can not be written (%s)",
+							  attName,identification,value.getClass().getName()));
+	}
+    }
+    private static Object readValue(Binary in, Object container, Object key,
+				    ArrayList<Object[]> refs) throws IOException {
+	int type=in.readVarint();
+	switch (type) {
+	case 0: return null;
+	case 1: return in.readText();
+	case 2: return in.readSigned();
+	case 3: return in.readFixed();
+	case 4: return Double.longBitsToDouble(in.readFixed());
+	case 5: return in.readVarint() != 0;
+	case 6:
+	    refs.add(new Object[] {container,key,in.readSigned()});
+	    return null;
+	case 7:
+	    int size=in.readVarint();
+	    ArrayList<Object> list=new ArrayList<Object>(size);
+	    for (int ii=0;ii<size;ii++) list.add(readValue(in,list,ii,refs));
+	    return list;
+	default:
+	    throw new IOException(String.format("Unknown attribute type %d in RegexNode tree",type));
+	}
+    }
+    /**
+     * The bytes of a tree in the binary format, written or read at pos. Numbers are
+     * varints, signed numbers zigzag varints (-1 takes one byte) and texts the length
+     * followed by each character as a varint (ASCII takes one byte). On a stream the
+     * bytes go in blocks of at most 64 KB, each after its length, and an empty block
+     * ends the tree, so a tree of any size is written and read through one buffer.
+     */
+    private static final class Binary {
+	private byte[] bytes;
+	private int pos;
+	private int limit;      // end of the bytes that can be read
+	private DataOutput out; // stream the blocks are written to, or
+	private DataInput in;   // read from
+	private Binary(int size) {
+	    this.bytes=new byte[size];
+	    this.limit=size;
+	}
+	private Binary(DataOutput out) {
+	    this(65536);
+	    this.out=out;
+	}
+	private Binary(DataInput in) {
+	    this(65536);
+	    this.in=in;
+	    this.limit=0;
+	}
+	private void room(int size) {
+	    if (pos+size > bytes.length) {
+		if (out != null && pos > 0) flush();
+		if (pos+size > bytes.length) bytes=Arrays.copyOf(bytes,Math.max(pos+size,bytes.length*2));
+	    }
+	}
+	// writes the bytes so far as a block
+	private void flush() {
+	    try {
+		out.writeInt(pos);
+		out.write(bytes,0,pos);
+	    } catch (IOException e) {
+		throw new UncheckedIOException(e);
+	    }
+	    pos=0;
+	}
+	// ends the blocks written to, or read from, a stream
+	private void finish() throws IOException {
+	    if (out != null) {
+		if (pos > 0) flush();
+		out.writeInt(0);
+	    } else if (in != null) {
+		if (pos < limit || in.readInt() != 0) throw new IOException("RegexNode tree does not end where expected");
+	    }
+	}
+	// reads the next block
+	private void more() throws IOException {
+	    if (in == null) throw new IOException("RegexNode tree ends too early");
+	    int length=in.readInt();
+	    if (length <= 0) throw new IOException(length == 0 ? "RegexNode tree ends too early"
+						  : String.format("Bad block length %d in RegexNode tree",length));
+	    if (length > bytes.length) bytes=new byte[length];
+	    in.readFully(bytes,0,length);
+	    pos=0;
+	    limit=length;
+	}
+	private byte next() throws IOException {
+	    if (pos == limit) more();
+	    return bytes[pos++];
+	}
+	private void varint(int value) {
+	    room(5);
+	    while ((value & ~0x7f) != 0) {
+		bytes[pos++]=(byte) ((value & 0x7f) | 0x80);
+		value>>>=7;
+	    }
+	    bytes[pos++]=(byte) value;
+	}
+	private void signed(int value) {
+	    varint((value<<1) ^ (value>>31));
+	}
+	private void fixed(long value) {
+	    room(8);
+	    for (int shift=56;shift>=0;shift-=8) bytes[pos++]=(byte) (value>>>shift);
+	}
+	private void text(CharSequence text) {
+	    int len=text.length();
+	    varint(len);
+	    int ii=0;
+	    while (ii < len) {
+		room(3);
+		int end=Math.min(len,ii+(bytes.length-pos)/3); // each character takes at most 3 bytes
+		for (;ii<end;ii++) {
+		    char c=text.charAt(ii);
+		    if (c < 0x80) {
+			bytes[pos++]=(byte) c;
+		    } else {
+			int value=c;
+			while ((value & ~0x7f) != 0) {
+			    bytes[pos++]=(byte) ((value & 0x7f) | 0x80);
+			    value>>>=7;
+			}
+			bytes[pos++]=(byte) value;
+		    }
+		}
+	    }
+	}
+	private int readVarint() throws IOException {
+	    int value=0;
+	    for (int shift=0;shift<35;shift+=7) {
+		int b=next();
+		value|=(b & 0x7f)<<shift;
+		if ((b & 0x80) == 0) return value;
+	    }
+	    throw new IOException(String.format("Bad varint at byte %d of RegexNode tree",pos));
+	}
+	private int readSigned() throws IOException {
+	    int value=readVarint();
+	    return (value>>>1) ^ -(value & 1);
+	}
+	private long readFixed() throws IOException {
+	    long value=0;
+	    for (int ii=0;ii<8;ii++) value=(value<<8) | (next() & 0xff);
+	    return value;
+	}
+	private String readText() throws IOException {
+	    int len=readVarint();
+	    if (len < 0 || (in == null && len > limit-pos)) throw new IOException(String.format("Bad text length %d in RegexNode tree",len));
+	    char[] text=new char[len];
+	    int ii=0;
+	    while (ii < len) {
+		if (pos == limit) more();
+		byte b=bytes[pos];
+		if (b >= 0) {
+		    text[ii++]=(char) b;
+		    pos++;
+		} else {
+		    text[ii++]=(char) readVarint();
+		}
+	    }
+	    return new String(text);
+	}
+    }
+    //
+    //******************** M A P P E D   S T O R E ******************
+    //
+    private static final int storeMagic=0x52674e73; // "RgNs"
+    private static final int storeVersion=1;
+    private static final int storeRecord=56;       // bytes per node in a node table
+    private static final int storeShift=30;        // the store is mapped in regions of 1 GB
+    /**
+     * Writes the tree below this node to a store file with one tree (see StoreWriter).
+     */
+    public void store(Path file) throws IOException {
+	try (StoreWriter out=new StoreWriter(file)) {
+	    out.add(this);
+	}
+    }
+    /**
+     * Writes trees to a store file, which Store maps read-only. Each tree is a node table
+     * with a fixed size record per node, followed by a text heap with the resulting texts
+     * (two bytes per character) and the attributes in the binary format. The node names
+     * and the position of each tree follow the last tree, and are written by close.
+     *
+     * Node record: name, parent, first child, next sibling (node numbers in the tree, -1 if none),
+     * start and end index in the parent, text length, attribute length, text position,
+     * attribute position, flags (1 ignored) and number of children.
+     */
+    public static final class StoreWriter implements Closeable {
+	private final DataOutputStream out;
+	private final LinkedHashMap<String,Integer> names=new LinkedHashMap<String,Integer>();
+	private final byte[] chars=new byte[16384];
+	private long pos;            // bytes written so far
+	private long[] trees=new long[64];
+	private int size;
+	public StoreWriter(Path file) throws IOException {
+	    out=new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file),65536));
+	    out.writeInt(storeMagic);
+	    out.writeInt(storeVersion);
+	    pos=8;
+	}
+	/**
+	 * Adds the tree below node to the store. The tree is left as it is.
+	 * @return the number of the tree in the store.
+	 */
+	public int add(RegexNode node) throws IOException {
+	    ArrayList<RegexNode> nodes=new ArrayList<RegexNode>();
+	    node.binaryNodes(nodes);
+	    int count=nodes.size();
+	    IdentityHashMap<RegexNode,Integer> ordinal=new IdentityHashMap<RegexNode,Integer>(count*2);
+	    for (RegexNode n : nodes) {
+		ordinal.put(n,ordinal.size());
+		if (! names.containsKey(n.getNodeName())) names.put(n.getNodeName(),names.size());
+	    }
+	    Binary att=new Binary(256);
+	    int[] attStart=new int[count+1];
+	    long text=pos+4+(long) storeRecord*count;
+	    long attributes=text;
+	    for (int ii=0;ii<count;ii++) {
+		RegexNode n=nodes.get(ii);
+		attStart[ii]=att.pos;
+		if (n.attributes != null) {
+		    att.varint(n.attributes.size());
+		    for (Map.Entry<String,Object> entry : n.attributes.entrySet()) {
+			att.text(entry.getKey());
+			n.writeValue(att,entry.getKey(),entry.getValue(),ordinal);
+		    }
+		}
+		attributes=attributes+2L*n.text().length();
+	    }
+	    attStart[count]=att.pos;
+	    if (size == trees.length) trees=Arrays.copyOf(trees,2*size);
+	    trees[size]=pos;
+	    out.writeInt(count);
+	    for (int ii=0;ii<count;ii++) {
+		RegexNode n=nodes.get(ii);
+		indexFlush(n.childIndex); // the children are written later
+		RegexNode child=n.firstChild.nextSibling;
+		out.writeInt(names.get(n.getNodeName()));
+		out.writeInt(ii == 0 ? -1 : ordinal.get(n.parentNode));
+		out.writeInt(child == n.lastChild ? -1 : ordinal.get(child));
+		out.writeInt(ii == 0 || n.nextSibling == n.parentNode.lastChild ? -1 : ordinal.get(n.nextSibling));
+		out.writeInt(ii == 0 ? -1 : n.parentNodeStartIndex);
+		out.writeInt(ii == 0 ? -1 : n.parentNodeEndIndex);
+		out.writeInt(n.text().length());
+		out.writeInt(attStart[ii+1]-attStart[ii]);
+		out.writeLong(text);
+		out.writeLong(attributes+attStart[ii]);
+		out.writeInt(n.ignored ? 1 : 0);
+		out.writeInt(indexSize(n.childIndex));
+		text=text+2L*n.text().length();
+	    }
+	    for (RegexNode n : nodes) writeChars(n.text());
+	    out.write(att.bytes,0,att.pos);
+	    pos=attributes+att.pos;
+	    return size++;
+	}
+	private void writeChars(CharSequence text) throws IOException {
+	    int len=text.length();
+	    for (int start=0;start<len;start=start+chars.length/2) {
+		int end=Math.min(len,start+chars.length/2);
+		int jj=0;
+		for (int ii=start;ii<end;ii++) {
+		    char c=text.charAt(ii);
+		    chars[jj++]=(byte) (c>>>8);
+		    chars[jj++]=(byte) c;
+		}
+		out.write(chars,0,jj);
+	    }
+	}
+	/**
+	 * Writes the node names and the tree positions, and closes the file.
+	 */
+	@Override
+	public void close() throws IOException {
+	    try {
+		Binary bin=new Binary(256);
+		bin.varint(names.size());
+		for (String name : names.keySet()) bin.text(name);
+		out.write(bin.bytes,0,bin.pos);
+		long treeTable=pos+bin.pos;
+		for (int ii=0;ii<size;ii++) out.writeLong(trees[ii]);
+		out.writeLong(pos);
+		out.writeLong(treeTable);
+		out.writeInt(size);
+		out.writeInt(storeMagic);
+	    } finally {
+		out.close();
+	    }
+	}
+    }
+    /**
+     * A store file written by StoreWriter, mapped read-only. Nothing is read before it
+     * is used, so the trees in a store much larger than the heap can be queried through
+     * Stored views, and only the pages they touch are read from disk. A Store and its
+     * views can be shared by threads.
+     */
+    public static final class Store implements Closeable {
+	private final FileChannel channel;
+	private final long length;
+	private final ByteBuffer[] regions;
+	private final String[] names;
+	private final int[] symbols;
+	private final long treeTable;
+	private final int size;
+	private Store(Path file) throws IOException {
+	    channel=FileChannel.open(file,StandardOpenOption.READ);
+	    try {
+		length=channel.size();
+		if (length < 32) throw new IOException("Not a RegexNode store");
+		regions=new ByteBuffer[(int) ((length-1)>>>storeShift)+1];
+		for (int ii=0;ii<regions.length;ii++) {
+		    long start=(long) ii<<storeShift;
+		    regions[ii]=channel.map(FileChannel.MapMode.READ_ONLY,start,Math.min(1L<<storeShift,length-start));
+		}
+		if (getInt(0) != storeMagic || getInt(length-4) != storeMagic) throw new IOException("Not a RegexNode store");
+		int version=getInt(4);
+		if (version != storeVersion) throw new IOException(String.format("Unknown RegexNode store version %d",version));
+		long nameTable=getLong(length-24);
+		treeTable=getLong(length-16);
+		size=getInt(length-8);
+		if (nameTable < 8 || treeTable < nameTable || treeTable+8L*size != length-24) {
+		    throw new IOException("Damaged RegexNode store");
+		}
+		Binary bin=new Binary((int) (treeTable-nameTable));
+		for (int ii=0;ii<bin.bytes.length;ii++) bin.bytes[ii]=getByte(nameTable+ii);
+		names=new String[bin.readVarint()];
+		symbols=new int[names.length];
+		for (int ii=0;ii<names.length;ii++) {
+		    names[ii]=bin.readText();
+		    symbols[ii]=symbolOf(names[ii]);
+		}
+	    } catch (IOException|RuntimeException e) {
+		channel.close();
+		throw e;
+	    }
+	}
+	public static Store open(Path file) throws IOException {
+	    return new Store(file);
+	}
+	/**
+	 * @return the number of trees in the store.
+	 */
+	public int size() {
+	    return size;
+	}
+	/**
+	 * @return a view of the top node of tree number "tree".
+	 */
+	public Stored getTree(int tree) {
+	    if (tree < 0 || tree >= size) throw new IndexOutOfBoundsException(String.format("No tree %d in store",tree));
+	    return new Stored(this,getLong(treeTable+8L*tree),0);
+	}
+	/**
+	 * Closes the file. The mapping is released when the store and its views are collected.
+	 */
+	@Override
+	public void close() throws IOException {
+	    channel.close();
+	}
+	private byte getByte(long at) {
+	    return regions[(int) (at>>>storeShift)].get((int) (at & ((1L<<storeShift)-1)));
+	}
+	private int getInt(long at) {
+	    ByteBuffer region=regions[(int) (at>>>storeShift)];
+	    int off=(int) (at & ((1L<<storeShift)-1));
+	    if (off+4 <= region.limit()) return region.getInt(off);
+	    int value=0;
+	    for (int ii=0;ii<4;ii++) value=(value<<8) | (getByte(at+ii) & 0xff); // across two regions
+	    return value;
+	}
+	private long getLong(long at) {
+	    return ((long) getInt(at)<<32) | (getInt(at+4) & 0xffffffffL);
+	}
+	private char getChar(long at) {
+	    ByteBuffer region=regions[(int) (at>>>storeShift)];
+	    int off=(int) (at & ((1L<<storeShift)-1));
+	    if (off+2 <= region.limit()) return region.getChar(off);
+	    return (char) (((getByte(at) & 0xff)<<8) | (getByte(at+1) & 0xff));
+	}
+	// characters from, to-1 of the text at "at"
+	private void appendChars(Appendable out, long at, int from, int to) throws IOException {
+	    char[] buffer=new char[Math.min(8192,Math.max(0,to-from))];
+	    while (from < to) {
+		int len=Math.min(buffer.length,to-from);
+		for (int ii=0;ii<len;ii++) buffer[ii]=getChar(at+2L*(from+ii));
+		out.append(CharBuffer.wrap(buffer,0,len));
+		from=from+len;
+	    }
+	}
+    }
+    /**
+     * Read-only view of a node in a Store, with the query methods of RegexNode.
+     * A view only holds its position, the node is read from the store when asked.
+     * getNode has no search cursor, it returns the first node in the order
+     * RegexNode.getNode would return them (the nodes below first), and getNodeAll all of them.
+     */
+    public static final class Stored {
+	private final Store store;
+	private final long tree;     // position of the tree in the store
+	private final int index;     // node number in the tree, the top node is 0
+	private Stored(Store store, long tree, int index) {
+	    this.store=store;
+	    this.tree=tree;
+	    this.index=index;
+	}
+	private int field(int node, int offset) {
+	    return store.getInt(tree+4+(long) storeRecord*node+offset);
+	}
+	private long fieldLong(int node, int offset) {
+	    return store.getLong(tree+4+(long) storeRecord*node+offset);
+	}
+	private Stored view(int node) {
+	    return (node < 0 || node >= store.getInt(tree) ? null : new Stored(store,tree,node));
+	}
+	public String getNodeName() {
+	    return store.names[field(index,0)];
+	}
+	public Stored getParent() {
+	    return view(field(index,4));
+	}
+	public Integer countChildren() {
+	    return field(index,52);
+	}
+	/**
+	 * Get the resulting text for this node.
+	 */
+	public String getText() {
+	    StringBuilder res=new StringBuilder(field(index,24));
+	    try {
+		store.appendChars(res,fieldLong(index,32),0,field(index,24));
+	    } catch (IOException e) { // never thrown by StringBuilder
+		throw new IllegalStateException(e);
+	    }
+	    return res.toString();
+	}
+	/**
+	 * Get the resulting text with all hidden text put back in place.
+	 */
+	public String getTextAll() {
+	    StringBuilder res=new StringBuilder();
+	    try {
+		getTextAll(res);
+	    } catch (IOException e) { // never thrown by StringBuilder
+		throw new IllegalStateException(e);
+	    }
+	    return res.toString();
+	}
+	public void getTextAll(Appendable out) throws IOException {
+	    getTextAll_(out,index);
+	}
+	private void getTextAll_(Appendable out, int node) throws IOException {
+	    long text=fieldLong(node,32);
+	    int pos=0;
+	    for (int child=field(node,8);child >= 0;child=field(child,12)) {
+		store.appendChars(out,text,pos,field(child,16));
+		getTextAll_(out,child);
+		pos=field(child,20);
+	    }
+	    store.appendChars(out,text,pos,field(node,24));
+	}
+	/**
+	 * @return the value of the attribute, or null if the node does not have it.
+	 *         Node values are returned as Stored views.
+	 */
+	public Object getAttribute(String attName) {
+	    int len=field(index,28);
+	    if (len == 0) return null;
+	    long at=fieldLong(index,40);
+	    Binary bin=new Binary(len);
+	    for (int ii=0;ii<len;ii++) bin.bytes[ii]=store.getByte(at+ii);
+	    try {
+		int size=bin.readVarint();
+		for (int ii=0;ii<size;ii++) {
+		    String name=bin.readText();
+		    ArrayList<Object[]> refs=new ArrayList<Object[]>(); // node values: container, key, node
+		    Object value=readValue(bin,this,name,refs);
+		    if (! name.equals(attName)) continue;
+		    for (Object[] ref : refs) {
+			Stored node=view((Integer) ref[2]);
+			if (ref[0] == this) {
+			    value=node;
+			} else {
+			    @SuppressWarnings("unchecked") ArrayList<Object> list=(ArrayList<Object>) ref[0];
+			    list.set((Integer) ref[1],node);
+			}
+		    }
+		    return value;
+		}
+	    } catch (IOException e) {
+		throw new IllegalStateException(String.format("Damaged attributes in RegexNode store (%s)",e.getMessage()));
+	    }
+	    return null;
+	}
+	/**
+	 * @return the first node below (or this node) matching the node name stack,
+	 *         or null if there is none.
+	 */
+	public Stored getNode(String... path) {
+	    ArrayList<Stored> found=new ArrayList<Stored>(1);
+	    find(path,found,1);
+	    return (found.isEmpty() ? null : found.get(0));
+	}
+	public ArrayList<Stored> getNodeAll(String... path) {
+	    ArrayList<Stored> found=new ArrayList<Stored>();
+	    find(path,found,Integer.MAX_VALUE);
+	    return found;
+	}
+	private void find(String[] path, ArrayList<Stored> found, int limit) {
+	    Character split='¤';
+	    Pattern pattern=shared.patternCache.get(getPatternText(path,split));
+	    NodeSelector selector=shared.patternCache.getSelector(pattern,split);
+	    find_(index,selector,(selector == null ? null : selector.top),pattern,split,found,limit);
+	}
+	// the nodes below first, then the node, like getNode_
+	private boolean find_(int node, NodeSelector selector, int[] above, Pattern pattern, char split,
+			      ArrayList<Stored> found, int limit) {
+	    int name=field(node,0);
+	    int[] state=null;
+	    if (selector != null) {
+		state=new int[above.length];
+		selector.step(store.names[name],store.symbols[name],above,state);
+	    }
+	    for (int child=field(node,8);child >= 0;child=field(child,12)) {
+		if (find_(child,selector,state,pattern,split,found,limit)) return true;
+	    }
+	    boolean match;
+	    if (selector != null) {
+		match=state[0] >= 0;
+	    } else {
+		StringBuilder names=new StringBuilder().append(split);
+		for (int up=node;;up=field(up,4)) {
+		    names.append(store.names[field(up,0)]).append(split);
+		    if (up == index) break;
+		}
+		match=pattern.matcher(names).find();
+	    }
+	    if (! match) return false;
+	    found.add(new Stored(store,tree,node));
+	    return found.size() >= limit;
+	}
+	@Override
+	public boolean equals(Object other) {
+	    if (! (other instanceof Stored)) return false;
+	    Stored that=(Stored) other;
+	    return store == that.store && tree == that.tree && index == that.index;
+	}
+	@Override
+	public int hashCode() {
+	    return Long.hashCode(tree)*31+index;
+	}
+	@Override
+	public String toString() {
+	    return String.format("%d#%s",index,getNodeName());
+	}
     }
     //
     //******************** D E B U G   T O O L S ******************
@@ -607,13 +1664,14 @@ public final class RegexNode {
     }
     private void checkTree_() {
 	//System.out.format("Check done.\n");
+	indexFlush(childIndex);
 	RegexNode child=firstChild.nextSibling;
 	while(child != lastChild) {
 	    if (child.parentNode != this) {
 		System.out.format("Child %s parent mismatch: %s %s\n",child.identification,identification, 
 				  child.parentNode.identification);
 	    }
-	    if (child.parentNodeStartIndex < 0 || child.parentNodeEndIndex >  resultText.length()) {
+	    if (child.parentNodeStartIndex < 0 || child.parentNodeEndIndex >  text().length()) {
 		throw new IllegalStateException(String.format("Invalid child index %s\nId:%d %d\n",toString(),identification,child.identification));
 	    }
 	    if (child.startFoldNode != null) {
@@ -631,7 +1689,7 @@ public final class RegexNode {
 	}
     }
     private void checkAnchors_() {
-	for (Map.Entry<String, Integer> entry : anchorCnt.entrySet()) {
+	for (Map.Entry<String, Integer> entry : context.anchorCnt.entrySet()) {
 	    String anchorName = entry.getKey();
 	    Integer cnt    = entry.getValue();
 	    if (cnt == 0) {
@@ -668,7 +1726,7 @@ public final class RegexNode {
       * @return Number of nodes defined in node tree.
       */
     public int getMaxIdentification() {
-	return maxidentification;
+	return context.maxIdentification();
     }
 
     /**
@@ -700,9 +1758,48 @@ public final class RegexNode {
 	return s;
     }
     public String toString(int sublevel) {
-	String s=toString(sublevel,"").replaceAll("[^\\x00-\\x7F\\xA4]", "§");
-	s=s+String.format("\n#### Total number of nodes defined = %d.\n",getMaxIdentification());
-	return s;
+	StringBuilder s=new StringBuilder();
+	try {
+	    dump(s,sublevel);
+	} catch (IOException e) { // never thrown by StringBuilder
+	    throw new IllegalStateException(e);
+	}
+	return s.toString();
+    }
+    /**
+      * Writes the string representation of the sub structure of a node
+      * directly into a StringBuilder, Writer etc, one node at a time.
+      *
+      * @param out
+      *        where the node structure is written.
+      */
+    public void dump(Appendable out) throws IOException {
+	dump(out,-1);
+    }
+    public void dump(Appendable out, int sublevel) throws IOException {
+	dump(out,sublevel,"");
+	out.append(String.format("\n#### Total number of nodes defined = %d.\n",getMaxIdentification()));
+    }
+    // write s, replacing anything but ascii and "¤" by "§"
+    private static void dumpAscii(Appendable out, CharSequence s) throws IOException {
+	int len=s.length();
+	int pos=0;
+	for (int ii=0;ii<len;ii++) {
+	    char c=s.charAt(ii);
+	    if (c <= '\u007F' || c == '\u00A4') continue;
+	    out.append(s,pos,ii).append('§');
+	    if (Character.isHighSurrogate(c) && ii+1 < len && Character.isLowSurrogate(s.charAt(ii+1))) ii++;
+	    pos=ii+1;
+	}
+	out.append(s,pos,len);
+    }
+    // true if s holds anything but white space
+    private static boolean hasText(CharSequence s) {
+	for (int ii=0;ii<s.length();ii++) {
+	    char c=s.charAt(ii);
+	    if (c != ' ' && c != '\t' && c != '\n' && c != '\u000B' && c != '\f' && c != '\r') return true;
+	}
+	return false;
     }
     /**
       * Get the string representation of the sub structure of a node.
@@ -710,15 +1807,18 @@ public final class RegexNode {
       * @param prefix
       *  The prefix used before each line in the output string.
       *
-      * @return a string representation of the node structure.
+      * @param out
+      *  where the node structure is written.
       */
-    private String toString(int sublevel,String prefix) {
+    private void dump(Appendable out, int sublevel,String prefix) throws IOException {
 	String itid=String.format("%s#%s",identification,node);
 	String ilid=new  String(new char[itid.length()]).replace('\0', ' ');
-	String t=prefix + itid + "# \"";
-	String l=prefix + ilid + "   ";
+	StringBuilder t=new StringBuilder(prefix).append(itid).append("# \"");
+	StringBuilder l=new StringBuilder(prefix).append(ilid).append("   ");
 	int cursor=-1;
 	RegexNode child;
+	indexFlush(childIndex);
+	indexSettle();
 	if (lastChild !=null) {
 	    child=lastChild.prevSibling;
 	    while (child != null & child != firstChild) { // first child is not a valid child
@@ -728,16 +1828,16 @@ public final class RegexNode {
 		    if (lid.length()>1) {
 			tid=tid+new String(new char[lid.length()-1]).replace('\0', ' ');
 		    }
-		    t=t + tid;
-		    l=l + lid;
+		    t.append(tid);
+		    l.append(lid);
 		}
 		child=child.prevSibling;
 	    }
 	}
-	if (resultText != null) {
+	if (text() != null) {
 	    cursor++;
-	    while (cursor < resultText.length()) {
-		char nextChar = resultText.charAt(cursor);
+	    while (cursor < text().length()) {
+		char nextChar = text().charAt(cursor);
 		if (firstChild != null ) {
 		    child=firstChild.nextSibling;
 		    while(child != null & child != lastChild) {
@@ -748,8 +1848,8 @@ public final class RegexNode {
 				tid=tid+new String(new char[lid.length()-1]).replace('\0', ' ');
 			    }
 			    //System.out.format("Found index: %d %d\n",child.parentNodeStartIndex,child.parentNodeEndIndex);
-			    t=t + tid;
-			    l=l + lid;
+			    t.append(tid);
+			    l.append(lid);
 			}
 			child=child.nextSibling;    // point to next valid element in chain
 		    }
@@ -758,16 +1858,16 @@ public final class RegexNode {
 		    nextChar=' ';
 		}
 		if (nextChar == '\n') {
-		    String lx=l.replaceAll("\\s+","");
-		    if (lx.length() > 0) {
-			t=t + "\n" + l + "\n     " + prefix;
+		    if (hasText(l)) {
+			t.append('\n').append(l).append("\n     ").append(prefix);
 		    } else {
-			t=t + "\n     " + prefix;
+			t.append("\n     ").append(prefix);
 		    }
-		    l="     " + prefix;
+		    l.setLength(0);
+		    l.append("     ").append(prefix);
 		} else {
-		    t=t + nextChar;
-		    l=l + " ";
+		    t.append(nextChar);
+		    l.append(' ');
 		}
 		if (lastChild != null ) {
 		    child=lastChild.prevSibling;
@@ -778,8 +1878,8 @@ public final class RegexNode {
 			    if (lid.length()>1) {
 				tid=tid+new String(new char[lid.length()-1]).replace('\0', ' ');
 			    }
-			    t=t + tid;
-			    l=l + lid;
+			    t.append(tid);
+			    l.append(lid);
 			}
 			child=child.prevSibling;
 		    }
@@ -787,7 +1887,7 @@ public final class RegexNode {
 		cursor++;
 	    }
 	} else {
-	    t=t+"**********************";
+	    t.append("**********************");
 	}
 	//System.out.format("\n");
 	if ( firstChild != null ) {
@@ -800,8 +1900,8 @@ public final class RegexNode {
 			tid=tid+new String(new char[lid.length()-1]).replace('\0', ' ');
 		    }
 		    //System.out.format("Found index: %d %d\n",child.parentNodeStartIndex,child.parentNodeEndIndex);
-		    t=t + tid;
-		    l=l + lid;
+		    t.append(tid);
+		    l.append(lid);
 		}
 		child=child.nextSibling;    // point to next valid element in chain
 	    }
@@ -831,8 +1931,8 @@ public final class RegexNode {
 	    itid=itid + String.format(" %d groups",nMatchGroups);
 	}
 	for (Integer ii=1;ii<= nMatchGroups;ii++) {
-	    itid=itid+" \"" + matchGroups.get(ii).replace("\n","|") + "\"";
-	    itid=itid+String.format("(%d,%d)",matchStartIndexShifted.get(ii),matchEndIndexShifted.get(ii));
+	    itid=itid+" \"" + match.group(ii).replace("\n","|") + "\"";
+	    itid=itid+String.format("(%d,%d)",match.start(ii),match.end(ii));
 	}
 	if (startFoldNode != null) {
 	    itid=itid + String.format(" Start%d#",startFoldNode.identification);
@@ -841,48 +1941,48 @@ public final class RegexNode {
 	    itid=itid + String.format(" End%d#",endFoldNode.identification);
 	}
 
-	String s = "\n" + t + "\"" + itid + ilid + "\n" + l;
-	for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+	StringBuilder s=new StringBuilder("\n").append(t).append('"').append(itid).append(ilid).append('\n').append(l);
+	if (attributes != null) for (Map.Entry<String, Object> entry : attributes.entrySet()) {
 	    String attName   = entry.getKey();
-	    s=s + "\n" + prefix + "   @" + attName;
+	    s.append("\n" + prefix + "   @" + attName);
 	    Object attObject = entry.getValue();
 	    if (attObject instanceof String) {
-		s=s + " = \"" + (String) attObject + "\"";
+		s.append(" = \"" + (String) attObject + "\"");
 	    } else if (attObject instanceof Integer || 
 		       attObject instanceof Double || 
 		       attObject instanceof Boolean ) {
-		s=s + " = " + attObject.toString();
+		s.append(" = " + attObject.toString());
 	    } else if (attObject instanceof RegexNode) {
 		RegexNode ao=(RegexNode)attObject;
-		s=s + " = " + ao.getIdentification()+"#"+ao.getNodeName();
+		s.append(" = " + ao.getIdentification()+"#"+ao.getNodeName());
 	    } else if (attObject instanceof ArrayList<?>) {
 		@SuppressWarnings("unchecked") ArrayList<Object> ao = (ArrayList) attObject;
-		s=s + " = {";
+		s.append(" = {");
 		int cnt=0;
 		for (Object a : ao) {
-		    if (cnt > 0) s=s+", ";
+		    if (cnt > 0) s.append(", ");
 		    cnt++;
-		    s=s + "\"" + (String)a + "\"" ;
+		    s.append("\"" + (String)a + "\"" );
 		}
-		s=s + "}";
+		s.append("}");
 	    } else {
-		s=s + "   ***";
+		s.append("   ***");
 	    }
 	}
-	for (Map.Entry<Integer, RegexNode> entry : nodeChildMap.entrySet()) {
+	if (nodeChildMap != null) for (Map.Entry<Integer, RegexNode> entry : nodeChildMap.entrySet()) {
 	    Integer nodeId   = entry.getKey();
-	    s=s + "\n" + prefix + "   %" + nodeId.toString();
+	    s.append("\n" + prefix + "   %" + nodeId.toString());
 	    RegexNode nodeChild = entry.getValue();
-	    s=s + " = " + nodeChild.getIdentification();
+	    s.append(" = " + nodeChild.getIdentification());
 	}
+	dumpAscii(out,s);
 	if (firstChild != null & sublevel != 0) {
 	    child=firstChild.nextSibling;
 	    while(child != null & child != lastChild) {
-		s=s+child.toString(sublevel-1,prefix + "  ");
+		child.dump(out,sublevel-1,prefix + "  ");
 		child=child.nextSibling;    // point to next valid element in chain
 	    }
 	}
-	return s;
     }
     //
     //******************** S E A R C H ,   R E P L A C E   A N D   N A V I G A T E ******************
@@ -891,7 +1991,7 @@ public final class RegexNode {
       * Get the current resulting text for this node.
       */
     public String getText() {
-	return resultText.toString();
+	return text().toString();
     }
     /**
       * Get the current resulting text for a child node with specified node name.
@@ -981,7 +2081,7 @@ public final class RegexNode {
 	return seek_(replaceAnchorNames(patternText));
     }
     public void resetSeek() {
-	oldPatternString=null;
+	seekDone();
     }
     public boolean seek() {
 	String pattern=this._pattern;
@@ -1037,11 +2137,7 @@ public final class RegexNode {
      *        value of anchor that can be used within patterns and labels.
      */
     public static void define(String anchorName, String anchorValue) {
-	String anchor=anchorMap.get(anchorName);
-	if (anchor == null) {
-	    anchorMap.put(anchorName,anchorValue);
-	    anchorCnt.put(anchorName,0);
-	}
+	shared.define(anchorName,anchorValue);
     }
     /**
      * Anchors are non-standard characters that can be used to create unambiguous labels.
@@ -1052,20 +2148,7 @@ public final class RegexNode {
      *        name of anchor that can be used within patterns and labels.
      */
     public static void define(String anchorName) {
-	String anchor=anchorMap.get(anchorName);
-	if (anchor == null) {
-	    //if (nrAnchor == 0) {
-	    //for (int id=1; id< 256; id++) {
-	    //char c=(char) id;
-	    //System.out.format("Anchor id: %d is %s\n",id,String.valueOf(c));
-	    //}
-	    //}
-	    if (nrAnchor < 128) nrAnchor=128;
-	    if (nrAnchor > 159 & nrAnchor < 168) nrAnchor=168;
-	    anchor=getAnchor(nrAnchor++);
-	    anchorMap.put(anchorName,anchor);
-	    anchorCnt.put(anchorName,0);
-	}
+	shared.define(anchorName);
     }
     /**
      * Anchors are non-standard characters that can be used to create unambiguous labels.
@@ -1079,16 +2162,8 @@ public final class RegexNode {
      */
     public String replaceAnchorNames(String text) {
 	if (text == null) return "";
-	for (Map.Entry<String, String> entry : anchorMap.entrySet()) {
-	    String anchorName = entry.getKey();
-	    String anchor    = entry.getValue();
-	    String ntext=text.replace(anchorName,anchor);
-	    if (! ntext.equals(text)) {
-		anchorCnt.put(anchorName,anchorCnt.get(anchorName)+1);
-	    }
-	    text=ntext;
-	}
-	return text;
+	if (context.anchorNameMatcher == null) context.anchorNameMatcher=new AnchorMatcher(context.anchorMap,false);
+	return context.anchorNameMatcher.replace(text,context);
     }
     // replace labels that are anchors with their names...
     public boolean replaceLabelAnchorNames() { // hide current match 
@@ -1155,16 +2230,8 @@ public final class RegexNode {
      *        text with anchorNames instead of anchors.
      */
     public String replaceAnchors(String text) {
-	for (Map.Entry<String, String> entry : anchorMap.entrySet()) {
-	    String anchorName = entry.getKey();
-	    String anchor    = entry.getValue();
-	    String ntext = text.replace(anchor,anchorName);
-	    if (! ntext.equals(text)) {
-		anchorCnt.put(anchorName,anchorCnt.get(anchorName)+1);
-	    }
-	    text=ntext;
-	}
-	return text;
+	if (context.anchorValueMatcher == null) context.anchorValueMatcher=new AnchorMatcher(context.anchorMap,true);
+	return context.anchorValueMatcher.replace(text,context);
     }
     public boolean replaceLabelAnchors() { // hide current match 
 	String[] path=this._path;
@@ -1233,13 +2300,256 @@ public final class RegexNode {
     }
     public String getAnchorTable() {
 	String s="";
-	for (Map.Entry<String, String> entry : anchorMap.entrySet()) {
+	for (Map.Entry<String, String> entry : context.anchorMap.entrySet()) {
 	    String anchorName = entry.getKey();
 	    String anchor    = entry.getValue();
 	    s=s+anchorName + "=" + anchor + "\n";
 	}
 	return s;
     }
+    /**
+      * Aho-Corasick automaton over the anchor table, used to substitute all anchor
+      * names (or anchors) in one pass over the text. The result is the same as replacing
+      * the entries one after the other in definition order: an entry defined earlier
+      * wins over any later one it overlaps. If a replacement could make a new match for
+      * a later entry, the entries are replaced one after the other instead.
+      */
+    private static final class AnchorMatcher {
+	private final String[] name;   // anchor name of each entry (key in anchorCnt)
+	private final String[] from;   // text searched for
+	private final String[] to;     // replacement text
+	private boolean sequential;    // replacements may be matched by later entries
+	private char[][] keys;         // sorted transition characters of each state
+	private int[][] next;          // transition target of each key
+	private int[] fail;            // longest proper suffix state
+	private int[] depth;           // length of the text leading to the state
+	private int[] out;             // entry ending in the state (-1 if none)
+	private int[] outLink;         // next state on the failure chain with an entry (-1 if none)
+	private AnchorMatcher(LinkedHashMap<String,String> anchors, boolean reverse) {
+	    int n=anchors.size();
+	    name=new String[n];
+	    from=new String[n];
+	    to=new String[n];
+	    int ii=0;
+	    for (Map.Entry<String, String> entry : anchors.entrySet()) {
+		name[ii]=entry.getKey();
+		from[ii]=(reverse ? entry.getValue() : entry.getKey());
+		to[ii]=(reverse ? entry.getKey() : entry.getValue());
+		ii++;
+	    }
+	    for (ii=0;ii<n && ! sequential;ii++) {
+		if (from[ii] == null || from[ii].equals(to[ii])) continue;
+		if (from[ii].length() == 0) sequential=true; // matches between all characters
+		for (int jj=ii+1;jj<n && ! sequential;jj++) {
+		    if (from[jj] == null || from[jj].length() == 0) continue;
+		    if (to[ii].length() == 0) sequential=true; // joins the text around it
+		    for (int kk=0;kk<to[ii].length() && ! sequential;kk++) {
+			if (from[jj].indexOf(to[ii].charAt(kk)) != -1) sequential=true;
+		    }
+		}
+	    }
+	    build();
+	}
+	private void build() {
+	    // trie
+	    ArrayList<TreeMap<Character,Integer>> trie=new ArrayList<TreeMap<Character,Integer>>();
+	    ArrayList<Integer> entry=new ArrayList<Integer>();
+	    ArrayList<Integer> len=new ArrayList<Integer>();
+	    trie.add(new TreeMap<Character,Integer>());
+	    entry.add(-1);
+	    len.add(0);
+	    for (int ii=0;ii<from.length;ii++) {
+		if (from[ii] == null || from[ii].length() == 0 || from[ii].equals(to[ii])) continue;
+		int state=0;
+		for (int jj=0;jj<from[ii].length();jj++) {
+		    Integer target=trie.get(state).get(from[ii].charAt(jj));
+		    if (target == null) {
+			target=trie.size();
+			trie.add(new TreeMap<Character,Integer>());
+			entry.add(-1);
+			len.add(jj+1);
+			trie.get(state).put(from[ii].charAt(jj),target);
+		    }
+		    state=target;
+		}
+		if (entry.get(state) == -1) entry.set(state,ii); // first definition wins
+	    }
+	    int size=trie.size();
+	    keys=new char[size][];
+	    next=new int[size][];
+	    fail=new int[size];
+	    depth=new int[size];
+	    out=new int[size];
+	    outLink=new int[size];
+	    for (int state=0;state<size;state++) {
+		TreeMap<Character,Integer> edges=trie.get(state);
+		keys[state]=new char[edges.size()];
+		next[state]=new int[edges.size()];
+		int jj=0;
+		for (Map.Entry<Character,Integer> edge : edges.entrySet()) {
+		    keys[state][jj]=edge.getKey();
+		    next[state][jj]=edge.getValue();
+		    jj++;
+		}
+		depth[state]=len.get(state);
+		out[state]=entry.get(state);
+	    }
+	    // failure links, breadth first
+	    int[] queue=new int[size];
+	    int head=0;
+	    int tail=0;
+	    fail[0]=0;
+	    outLink[0]=-1;
+	    for (int target : next[0]) {
+		fail[target]=0;
+		outLink[target]=-1;
+		queue[tail++]=target;
+	    }
+	    while (head < tail) {
+		int state=queue[head++];
+		for (int jj=0;jj<keys[state].length;jj++) {
+		    int target=next[state][jj];
+		    int f=fail[state];
+		    int g=goTo(f,keys[state][jj]);
+		    while (g == -1 && f != 0) {
+			f=fail[f];
+			g=goTo(f,keys[state][jj]);
+		    }
+		    fail[target]=(g == -1 ? 0 : g);
+		    outLink[target]=(out[fail[target]] != -1 ? fail[target] : outLink[fail[target]]);
+		    queue[tail++]=target;
+		}
+	    }
+	}
+	private int goTo(int state, char c) {
+	    char[] k=keys[state];
+	    int lo=0;
+	    int hi=k.length-1;
+	    while (lo <= hi) {
+		int mid=(lo+hi)>>>1;
+		if (k[mid] < c) {
+		    lo=mid+1;
+		} else if (k[mid] > c) {
+		    hi=mid-1;
+		} else {
+		    return next[state][mid];
+		}
+	    }
+	    return -1;
+	}
+	private int step(int state, char c) {
+	    int g=goTo(state,c);
+	    while (g == -1 && state != 0) {
+		state=fail[state];
+		g=goTo(state,c);
+	    }
+	    return (g == -1 ? 0 : g);
+	}
+	/**
+	  * Replaces all entries found in text, and counts each entry used in the anchorCnt of the context.
+	  * The text itself is returned if nothing is found.
+	  * The automaton is not changed, so it may be shared by contexts on different threads.
+	  */
+	private String replace(String text, Context context) {
+	    if (sequential) return replaceEach(text,context);
+	    if (keys[0].length == 0) return text;
+	    // every occurrence, as entry and start, in the order of their end
+	    long[] found=null;
+	    int nFound=0;
+	    int state=0;
+	    int length=text.length();
+	    int lastEnd=0;
+	    boolean overlap=false;
+	    for (int pos=0;pos<length;) {
+		state=step(state,text.charAt(pos++));
+		for (int s=(out[state] != -1 ? state : outLink[state]);s != -1;s=outLink[s]) {
+		    if (found == null) {
+			found=new long[16];
+		    } else if (nFound == found.length) {
+			found=Arrays.copyOf(found,2*nFound);
+		    }
+		    found[nFound++]=((long) out[s] << 32) | (pos-depth[s]);
+		    if (pos-depth[s] < lastEnd) overlap=true;
+		    lastEnd=pos;
+		}
+	    }
+	    if (found == null) return text;
+	    context.anchorCalls++;
+	    if (! overlap) return replaceAll(text,found,nFound,context);
+	    // take the entries in definition order, each left to right as String.replace does,
+	    // skipping the occurrences that overlap text already replaced
+	    Arrays.sort(found,0,nFound);
+	    int[] at=new int[length]; // entry+1 where a replacement starts, -1 inside it
+	    int entry=-1;
+	    int end=0;
+	    boolean used=false;
+	    for (int ii=0;ii<nFound;ii++) {
+		int e=(int) (found[ii] >>> 32);
+		int start=(int) found[ii];
+		if (e != entry) {
+		    if (used) count(entry,context);
+		    entry=e;
+		    end=0;
+		    used=false;
+		}
+		if (start < end) continue;
+		int stop=start+from[e].length();
+		boolean free=true;
+		for (int pos=start;pos<stop && free;pos++) free=(at[pos] == 0);
+		if (! free) continue;
+		at[start]=e+1;
+		for (int pos=start+1;pos<stop;pos++) at[pos]=-1;
+		end=stop;
+		used=true;
+	    }
+	    if (used) count(entry,context);
+	    StringBuilder res=new StringBuilder(length+16);
+	    int copied=0;
+	    for (int pos=0;pos<length;pos++) {
+		if (at[pos] > 0) {
+		    res.append(text,copied,pos).append(to[at[pos]-1]);
+		    copied=pos+from[at[pos]-1].length();
+		}
+	    }
+	    res.append(text,copied,length);
+	    return res.toString();
+	}
+	// occurrences that do not overlap, in text order
+	private String replaceAll(String text, long[] found, int nFound, Context context) {
+	    StringBuilder res=new StringBuilder(text.length()+16);
+	    int copied=0;
+	    for (int ii=0;ii<nFound;ii++) {
+		int e=(int) (found[ii] >>> 32);
+		int start=(int) found[ii];
+		res.append(text,copied,start).append(to[e]);
+		copied=start+from[e].length();
+		count(e,context);
+	    }
+	    res.append(text,copied,text.length());
+	    return res.toString();
+	}
+	// one entry after the other, each may match the replacements made before it
+	private String replaceEach(String text, Context context) {
+	    context.anchorCalls++;
+	    for (int ii=0;ii<from.length;ii++) {
+		if (from[ii] == null || from[ii].equals(to[ii])) continue;
+		String ntext=text.replace(from[ii],to[ii]);
+		if (! ntext.equals(text)) count(ii,context);
+		text=ntext;
+	    }
+	    return text;
+	}
+	// an entry is counted once per call that replaced it
+	private void count(int entry, Context context) {
+	    if (context.anchorUsedIn == null || context.anchorUsedIn.length < name.length) {
+		context.anchorUsedIn=new int[name.length];
+	    }
+	    if (context.anchorUsedIn[entry] != context.anchorCalls) {
+		context.anchorUsedIn[entry]=context.anchorCalls;
+		context.anchorCnt.put(name[entry],context.anchorCnt.get(name[entry])+1);
+	    }
+	}
+    }
 
     //
     //******************** T A G S ******************
@@ -1321,12 +2631,19 @@ public final class RegexNode {
 	return getNodeAll_(this,targetlevel,pattern,split);
     }
     public ArrayList<RegexNode> getNodeAll_(RegexNode root, int targetlevel, Pattern pattern, Character split) { // unfold nodes
-	ArrayList<RegexNode> ret=null;
+	return getNodeAll_(root,targetlevel,pattern,split,markNamed(pattern,split));
+    }
+    private ArrayList<RegexNode> getNodeAll_(RegexNode root, int targetlevel, Pattern pattern, Character split, int mark) { // unfold nodes
+	ArrayList<RegexNode> ret=new ArrayList<RegexNode>();
 	RegexNode child=firstChild.nextSibling;
 	while (child != lastChild & !ignored) { // last child is not a valid child
+	    if (mark != 0 && child.nameMark != mark) { // no node with the name below
+		child=child.nextSibling;
+		continue;
+	    }
 	    child.marked=false;
 	    if (! child.ignored) {
-		ret.addAll(child.getNodeAll_(root,targetlevel,pattern,split));
+		ret.addAll(child.getNodeAll_(root,targetlevel,pattern,split,mark));
 	    };
 	    boolean match = (! child.ignored);
 	    Integer imatch=child.nodeMatch(root,pattern,split);
@@ -1361,6 +2678,7 @@ public final class RegexNode {
 			System.out.format("Error getNodeAll %s\n%s\n",child.identification, toString());
 			throw e;
 		    }
+		    child=child.nextSibling;
 		} else {
 		    child=child.nextSibling;
 		}
@@ -1373,20 +2691,16 @@ public final class RegexNode {
 
     //
     private Integer getNodeSid(String nodePatternText) {
+	if (nodeSidMap == null) nodeSidMap=new HashMap<String,Integer>();
 	Integer sid=nodeSidMap.get(nodePatternText);
 	if (sid == null) {
-	    sid=maxsid++;
+	    sid=context.maxsid++;
 	    nodeSidMap.put(nodePatternText,sid);
 	}
 	return sid;
     }
     private Pattern getNodePattern(String nodePatternText) {
-	Pattern pattern=nodePatternMap.get(nodePatternText);
-	if (pattern == null) {
-	    pattern=getNewPattern(nodePatternText);
-	    nodePatternMap.put(nodePatternText,pattern);
-	}
-	return pattern;
+	return context.patternCache.get(nodePatternText);
     }
     /**
       * Method to reset the "getNode" search.
@@ -1401,7 +2715,7 @@ public final class RegexNode {
     public void getNodeReset(String... path) { // focus on next node (recursively)
 	Character split = this._s;
 	String nodePatternText=getPatternText(path,split);
-	Integer sid=nodeSidMap.get(nodePatternText);
+	Integer sid=(nodeSidMap == null ? null : nodeSidMap.get(nodePatternText));
 	if (sid != null) {
 	    getNodeReset_(this,sid);
 	}
@@ -1427,9 +2741,11 @@ public final class RegexNode {
 	}
     }
     public RegexNode getFirstChild() {
+	chain();
 	return firstChild;
     }
     public RegexNode getLastChild() {
+	chain();
 	return lastChild;
     }
     public RegexNode getOnlyChild() {
@@ -1477,8 +2793,8 @@ public final class RegexNode {
 	RegexNode current=this;
 	boolean found=false;
 	while (current!=null & ! found) {
-	    RegexNode child=current.getFirstChild().getNextSibling();
-	    while (child != current.getLastChild() & ! found) {
+	    RegexNode child=current.firstChild.nextSibling;
+	    while (child != current.lastChild & ! found) {
 		if (name.equals(child.getNodeName())) {
 		    found=true;
 		}
@@ -1539,9 +2855,11 @@ public final class RegexNode {
 	}
     }
     public int getParentStartIndex() {
+	indexSettle();
 	return parentNodeStartIndex;
     }
     public int getParentEndIndex() {
+	indexSettle();
 	return parentNodeEndIndex;
     }
     public int count(String match) { // focus on next node (recursively)
@@ -1577,12 +2895,14 @@ public final class RegexNode {
 	int length=getText().length();
 	setLabel_(String.format("%1$"+length+ "s", ""));
 	unlink(); // remove from sibling chain
+	nameIndexedBy=null;
 	return true; // returns false when current node is top node
     }
     public boolean rmNode(String label) { // remove node and discard any changes herein after setting new label
 	if (parentNode == null) {return false;}; // top node
 	setLabel_(label);
 	unlink(); // remove from sibling chain
+	nameIndexedBy=null;
 	return true; // returns false when current node is top node
     }
     public boolean rmNodeAll(String label,String[] name1, String... name2) { // focus on next node (recursively)
@@ -1669,6 +2989,7 @@ public final class RegexNode {
 	Plan plan=prependText(0,label);
 	child.parentNode=this;
 	child.shiftIndexesSoTheyMatch(plan);
+	chain();
 	firstChild.appendChain(child); // first element
 	return child;
     }
@@ -1708,7 +3029,8 @@ public final class RegexNode {
 	child.unlink();
 	int startIndex=child.parentNodeStartIndex;
 	int endIndex=child.parentNodeEndIndex;
-	Plan plan=planReplacement(resultText.substring(startIndex,endIndex),startIndex,endIndex);
+	Plan plan=planReplacement(textSubstring(startIndex,endIndex),startIndex,endIndex);
+	chain();
 	RegexNode pchild=getChildBefore(endIndex);
 	pchild.shiftSiblingChainIndexes(plan); // shift indexes
 	shiftMatchIndexes(plan);         // shift group indexes
@@ -1723,6 +3045,7 @@ public final class RegexNode {
 	label=replaceAnchorNames(label);
 	child.unlink();
 	Plan plan=planReplacement(label,startIndex,endIndex);
+	chain();
 	RegexNode pchild=getChildBefore(endIndex);
 	pchild.shiftSiblingChainIndexes(plan); // shift indexes
 	shiftMatchIndexes(plan);         // shift group indexes
@@ -1737,6 +3060,7 @@ public final class RegexNode {
 	label=replaceAnchorNames(label);
 	child.unlink();
 	Plan plan=planReplacement(label,end(group),end(group));
+	chain();
 	RegexNode pchild=getChildBefore(end(group));
 	pchild.shiftSiblingChainIndexes(plan); // shift indexes
 	shiftMatchIndexes(plan);         // shift group indexes
@@ -1764,6 +3088,7 @@ public final class RegexNode {
 	Plan plan=appendText(0,label);
 	child.parentNode=this;
 	child.shiftIndexesSoTheyMatch(plan);
+	chain();
 	lastChild.prependChain(child); // last element
 	return child;
     }
@@ -1838,7 +3163,7 @@ public final class RegexNode {
     }
     public Plan prependSiblingText(String text) {
 	if (parentNode == null) return null;
-	Plan plan=planReplacement(text,parentNodeStartIndex,parentNodeStartIndex);
+	Plan plan=planReplacement(text,getParentStartIndex(),getParentStartIndex());
 	RegexNode child=prevSibling;
 	child.shiftSiblingChainIndexes(plan);      // shift indexes
 	parentNode.shiftMatchIndexes(plan);         // shift group indexes
@@ -1848,7 +3173,7 @@ public final class RegexNode {
     }
     public Plan appendSiblingText(String text) {
 	if (parentNode == null) return null;
-	Plan plan=planReplacement(text,parentNodeEndIndex,parentNodeEndIndex);
+	Plan plan=planReplacement(text,getParentEndIndex(),getParentEndIndex());
 	RegexNode child=prevSibling;
 	child.shiftSiblingChainIndexes(plan);      // shift indexes
 	parentNode.shiftMatchIndexes(plan);         // shift group indexes
@@ -1903,12 +3228,12 @@ public final class RegexNode {
       *  text string to be inserted.
       */
     public Plan appendText(String text) {
-	Plan plan=planReplacement(text,resultText.length(),resultText.length());
+	Plan plan=planReplacement(text,text().length(),text().length());
 	swap_(plan);
 	return plan;
     }
     public Plan appendText(int len, String text) {
-	Plan plan=planReplacement(text,resultText.length()-len,resultText.length());
+	Plan plan=planReplacement(text,text().length()-len,text().length());
 	swap_(plan);
 	return plan;
     }
@@ -1939,6 +3264,9 @@ public final class RegexNode {
      *      The node that has been replaced
      */
     public RegexNode replace(RegexNode victim) {
+	context.nodeEpoch++;
+	this.indexUnlink();
+	victim.indexUnlink();
 	RegexNode hbuff=this.parentNode;
 	this.parentNode=victim.parentNode;
 	victim.parentNode=hbuff;
@@ -1977,6 +3305,19 @@ public final class RegexNode {
 	if (victim.startFoldNode != null) victim.startFoldNode.endFoldNode=victim;
 	if (victim.endFoldNode != null) victim.endFoldNode.startFoldNode=victim;
 	//
+	if (this.prevSibling == victim) {
+	    victim.indexLink();
+	    this.indexLink();
+	} else {
+	    this.indexLink();
+	    victim.indexLink();
+	}
+	this.contextLink();
+	victim.contextLink();
+	this.maskLink();
+	victim.maskLink();
+	this.nameIndexLink();
+	victim.nameIndexLink();
 	return victim;
     }
     /**
@@ -1995,6 +3336,9 @@ public final class RegexNode {
 	    ret=false;
 	} else {
 	    this.node=node;
+	    this.symbol=symbolOf(node);
+	    context.nodeEpoch++;
+	    nameIndexAdd();
 	};
 	this._node=node;
 	return ret;
@@ -2058,7 +3402,7 @@ public final class RegexNode {
     }
     public String getLabel() {
 	if (parentNode != null) {
-	    return parentNode.resultText.substring(parentNodeStartIndex,parentNodeEndIndex);
+	    return parentNode.textSubstring(getParentStartIndex(),getParentEndIndex());
 	} else {
 	    return null;
 	}
@@ -2075,7 +3419,7 @@ public final class RegexNode {
     public String setChildLabel(RegexNode child, String label) {
 	//System.out.format("SetChildLabel: %s\n", child.toString());
 	// make replacement plan
-	Plan plan=planReplacement(label,child.parentNodeStartIndex,child.parentNodeEndIndex);
+	Plan plan=planReplacement(label,child.getParentStartIndex(),child.getParentEndIndex());
 	child.shiftIndexesSoTheyMatch(plan); // shifts only indexes in this node, assuming node matches plan
 	//System.out.format("SetChildLabel: %s\n%s\n", plan.toString(),child.toString());
 	child.shiftSiblingChainIndexes(plan);  // shift the sibling indexes of the next siblings (not previous!)
@@ -2095,7 +3439,7 @@ public final class RegexNode {
 	//System.out.format("SetChildLabel: %s\n", child.toString());
 	// make replacement plan
 	String label=fillSpace(child.getText().length(),c);
-	Plan plan=planReplacement(label,child.parentNodeStartIndex,child.parentNodeEndIndex);
+	Plan plan=planReplacement(label,child.getParentStartIndex(),child.getParentEndIndex());
 	child.shiftIndexesSoTheyMatch(plan); // shifts only indexes in this node, assuming node matches plan
 	//System.out.format("SetChildLabel: %s\n%s\n", plan.toString(),child.toString());
 	child.shiftSiblingChainIndexes(plan);  // shift the sibling indexes of the next siblings (not previous!)
@@ -2510,7 +3854,8 @@ public final class RegexNode {
 	Character split=this._s;
 	String nodePatternText=getPatternText(path,split);
 	Pattern pattern=getNodePattern(nodePatternText);
-	return replaceAll_(this,patternText, replacementText, 0, allSubLevels,pattern,split); // replace current match with processed replacement
+	long[] required=context.patternCache.getRequired(patternText);
+	return replaceAll_(this,patternText, replacementText, 0, allSubLevels,required,pattern,split); // replace current match with processed replacement
     }
 
     /**
@@ -2561,7 +3906,8 @@ public final class RegexNode {
 	Character split=this._s;
 	String nodePatternText=getPatternText(path,split);
 	Pattern pattern=getNodePattern(nodePatternText);
-	return replaceAll_(this,patternText, replacementText, group, subLevel, pattern, split); // replace current match with processed replacement
+	long[] required=context.patternCache.getRequired(patternText);
+	return replaceAll_(this,patternText, replacementText, group, subLevel, required, pattern, split); // replace current match with processed replacement
     }
 
     private RegexNode duplicate() {
@@ -2569,20 +3915,15 @@ public final class RegexNode {
     }
     private RegexNode duplicate(RegexNode parentNode) {
 	RegexNode duplicateNode=new 
-	    RegexNode(getText(),parentNode,parentNodeStartIndex,parentNodeEndIndex);
+	    RegexNode(context,getText(),parentNode,getParentStartIndex(),getParentEndIndex());
 	duplicateNode.setNodeName(getNodeName());
 	// copy groups
 	duplicateNode.nMatchGroups=this.nMatchGroups;
-	for(int ii=0;ii<=nMatchGroups;ii++) {
-	    duplicateNode.matchStartIndexShifted.put(ii,this.matchStartIndexShifted.get(ii));
-	    duplicateNode.matchEndIndexShifted.put(ii,this.matchEndIndexShifted.get(ii));
-	    duplicateNode.matchStartIndexOriginal.put(ii,this.matchStartIndexOriginal.get(ii));
-	    duplicateNode.matchEndIndexOriginal.put(ii,this.matchEndIndexOriginal.get(ii));
-	    duplicateNode.matchGroups.put(ii,this.matchGroups.get(ii));
-	}
+	duplicateNode.match.copy(this.match,nMatchGroups);
 	RegexNode child=firstChild.nextSibling;
 	if (child!=lastChild) {
 	    RegexNode duplicateChild = child.duplicate(duplicateNode);
+	    duplicateNode.chain();
 	    duplicateNode.lastChild.prependChain(duplicateChild);
 	    child=child.nextSibling;
 	}
@@ -2594,16 +3935,11 @@ public final class RegexNode {
 	// copy groups
 	this.init(blueprint.getText());
 	this.nMatchGroups=blueprint.nMatchGroups;
-	for(int ii=0;ii<=nMatchGroups;ii++) {
-	    this.matchStartIndexShifted.put(ii,blueprint.matchStartIndexShifted.get(ii));
-	    this.matchEndIndexShifted.put(ii,blueprint.matchEndIndexShifted.get(ii));
-	    this.matchStartIndexOriginal.put(ii,blueprint.matchStartIndexOriginal.get(ii));
-	    this.matchEndIndexOriginal.put(ii,blueprint.matchEndIndexOriginal.get(ii));
-	    this.matchGroups.put(ii,blueprint.matchGroups.get(ii));
-	}
+	this.match.copy(blueprint.match,nMatchGroups);
 	RegexNode child=blueprint.firstChild.nextSibling;
 	while (child!=blueprint.lastChild) {
 	    RegexNode duplicateChild = child.duplicate(this);
+	    this.chain();
 	    this.lastChild.prependChain(duplicateChild);
 	    child=child.nextSibling;
 	}
@@ -2619,18 +3955,12 @@ public final class RegexNode {
 	if (parentNode != null) System.out.format("Parent: %s\n",parentNode.identification);
 	System.out.format("Duplicating: %s\n%s\n",identification,toString());
 	RegexNode twin = new RegexNode(getText(),
-					   parentNode,parentNodeStartIndex,parentNodeEndIndex);
+					   parentNode,getParentStartIndex(),getParentEndIndex());
 	// copy node name
 	twin.setNodeName(getNodeName());
 	// copy groups
 	twin.nMatchGroups=this.nMatchGroups;
-	for(int ii=0;ii<=nMatchGroups;ii++) {
-	    twin.matchStartIndexShifted.put(ii,this.matchStartIndexShifted.get(ii));
-	    twin.matchEndIndexShifted.put(ii,this.matchEndIndexShifted.get(ii));
-	    twin.matchStartIndexOriginal.put(ii,this.matchStartIndexOriginal.get(ii));
-	    twin.matchEndIndexOriginal.put(ii,this.matchEndIndexOriginal.get(ii));
-	    twin.matchGroups.put(ii,this.matchGroups.get(ii));
-	}
+	twin.match.copy(this.match,nMatchGroups);
 	// copy ignored status
 	twin.ignored=this.ignored;
 	// add children
@@ -2638,8 +3968,9 @@ public final class RegexNode {
 	while (child != lastChild) { // last child is not a valid child
 	    RegexNode twinChild=child.duplicateOld();
 	    twinChild.parentNode=twin;
-	    twinChild.parentNodeStartIndex=child.parentNodeStartIndex;
-	    twinChild.parentNodeEndIndex=child.parentNodeStartIndex;
+	    twinChild.parentNodeStartIndex=child.getParentStartIndex();
+	    twinChild.parentNodeEndIndex=child.getParentStartIndex();
+	    twin.chain();
 	    twin.lastChild.prependChain(twinChild);
 	    child=child.nextSibling;
 	}
@@ -2780,7 +4111,7 @@ public final class RegexNode {
     public boolean hideNode(String newNode, String label, String... path) {
 	label=replaceAnchorNames(label);
 	boolean found=false;
-	Integer sid=maxsid++;
+	Integer sid=context.maxsid++;
 	Character split = this._s;
 	String nodePatternText=getPatternText(path,split);
 	Pattern pattern=getNewPattern(nodePatternText);
@@ -2852,7 +4183,7 @@ public final class RegexNode {
     public boolean hideNodeGroup(String groupNode, String label, int group, String... path) {
 	label=replaceAnchorNames(label);
 	boolean found=false;
-	Integer sid=maxsid++;
+	Integer sid=context.maxsid++;
 	Character split = this._s;
 	String nodePatternText=getPatternText(path,split);
 	Pattern pattern=getNewPattern(nodePatternText);
@@ -2951,11 +4282,11 @@ public final class RegexNode {
     public RegexNode makeParent(String node,String label) {
 	if (parentNode != null) {
 	    String lab=this.getLabel();
-	    RegexNode p = parentNode.hide_(node,label,this.parentNodeStartIndex,this.parentNodeEndIndex,null);
+	    RegexNode p = parentNode.hide_(node,label,this.getParentStartIndex(),this.getParentEndIndex(),null);
 	    this.setLabel(lab);
 	    return p;
 	} else {
-	    RegexNode p =  new RegexNode(node+":@;",':',';','@',this);
+	    RegexNode p =  new RegexNode(context,node+":@;",':',';','@',this);
 	    this.setLabel(label);
 	    return p;
 	}
@@ -3124,7 +4455,144 @@ public final class RegexNode {
 	Character split=this._s;
 	String nodePatternText=getPatternText(path,split);
 	Pattern pattern=getNodePattern(nodePatternText);
-	return hideAny_(this,0,node,patternText,label,pattern,split);
+	long[] required=context.patternCache.getRequired(patternText);
+	return hideAny_(this,0,node,patternText,label,required,pattern,split);
+    }
+    /**
+      * An ordered list of hide rules (node name, pattern and label), that lexAll
+      * applies in one pass over the text. For example:
+      *
+      *   RegexNode.Lexer lexer=new RegexNode.Lexer()
+      *       .rule("string",    "([\\\"\\\'])[^\\\"\\\'\\n]*\\1", "<String>")
+      *       .rule("comment",   "(?m)!.*$",                         "")
+      *       .rule("semicolon", ";",                                "\n");
+      *   regex.lexAll(lexer, "*");
+      */
+    public static final class Lexer {
+	private final ArrayList<String> nodes=new ArrayList<String>();
+	private final ArrayList<String> patterns=new ArrayList<String>();
+	private final ArrayList<String> labels=new ArrayList<String>();
+	/**
+	  * Adds a rule. Of two rules matching the same text, the rule added first wins.
+	  */
+	public Lexer rule(String node, String patternText, String label) {
+	    nodes.add(node);
+	    patterns.add(patternText);
+	    labels.add(label);
+	    return this;
+	}
+	public int size() {
+	    return nodes.size();
+	}
+    }
+    /**
+      * Hides the matches of all lexer rules, in one pass over the text of each node.
+      * Where matches overlap, the leftmost match is hidden, then the longest one,
+      * then the one of the first rule. Unlike a chain of hideAll calls, the rules do not
+      * see the labels left by the other rules, and do not search text that is hidden
+      * by another rule, so a "!" inside a string does not start a comment.
+      *
+      * @param lexer
+      *        the rules, with node name, pattern and label as in hideAll.
+      *
+      * @param node...
+      *        node name stack for the node that should be processed 
+      *        starting with the parent node in the node tree, 
+      *        and ending with the name of the node that will be 
+      *        processed ("..." is one or more nodes, "*" is any node, 
+      *        "$" indicates top of the node tree).
+      */
+    public RegexNode lexAll(Lexer lexer, String... path) {
+	lexAny(lexer,path);
+	return this;
+    }
+    public boolean lexAny(Lexer lexer, String... path) {
+	int nn=lexer.size();
+	String[] node=new String[nn];
+	Pattern[] rule=new Pattern[nn];
+	long[][] required=new long[nn][];
+	String[] label=new String[nn];
+	for (int ii=0;ii<nn;ii++) {
+	    String patternText=replaceAnchorNames(lexer.patterns.get(ii));
+	    node[ii]=lexer.nodes.get(ii);
+	    rule[ii]=context.patternCache.get(patternText);
+	    required[ii]=context.patternCache.getRequired(patternText);
+	    label[ii]=replaceAnchorNames(lexer.labels.get(ii));
+	}
+	Character split=this._s;
+	String nodePatternText=getPatternText(path,split);
+	Pattern pattern=getNodePattern(nodePatternText);
+	return lexAny_(this,node,rule,required,label,pattern,split);
+    }
+    /**
+      * Hides the pattern again and again, until there are no more matches, for instance
+      * to hide nested brackets from the inside out. After the first pass, only the nodes whose
+      * text changed in the previous pass, and the nodes made in it, are searched again.
+      * A node whose text did not change is not searched again, also when the new
+      * nodes above it change which path it matches. A node whose text did change is
+      * searched in full, as a new match may start anywhere before the new labels, so
+      * the text of a node with brackets nested d levels deep is searched d times.
+      *
+      * @param node
+      *        The name of the node given to the hidden text.
+      *
+      * @param patternText
+      *        The regular expression that it is searched for.
+      *        
+      * @param label
+      *        label to replace the hidden text in the search text.
+      *
+      * @param groupNode
+      *        if not null, the group of each new node is hidden in the new node,
+      *        giving it this node name (as hideNodeGroup).
+      *
+      * @param groupLabel
+      *        label to replace the hidden group in the new node.
+      *
+      * @param group
+      *        The group that is hidden in each new node.
+      *
+      * @param node...
+      *        node name stack for the node that should be processed 
+      *        starting with the parent node in the node tree, 
+      *        and ending with the name of the node that will be 
+      *        processed ("..." is one or more nodes, "*" is any node, 
+      *        "$" indicates top of the node tree).
+      *
+      * @return true if anything was hidden.
+      */
+    public boolean hideLoop(String patternText) {
+	String node=this._node;
+	String label=this._label;
+	String[] path=this._path;
+	return hideLoop(node, patternText, label, path);
+    }
+    public boolean hideLoop(String node, String patternText) {
+	String label=this._label;
+	String[] path=this._path;
+	return hideLoop(node, patternText, label, path);
+    }
+    public boolean hideLoop(String node, String patternText, String label) {
+	String[] path=this._path;
+	return hideLoop(node, patternText, label, path);
+    }
+    public boolean hideLoop(String node, String patternText, String label, 
+			    String[] name1, String... name2) {
+	return hideLoop(node, patternText, label, concat(name1,name2));
+    }
+    public boolean hideLoop(String node, String patternText, String label, 
+			    String... path) {
+	return hideLoop(node, patternText, label, null, null, 0, path);
+    }
+    public boolean hideLoop(String node, String patternText, String label,
+			    String groupNode, String groupLabel, int group, String... path) {
+	patternText=replaceAnchorNames(patternText);
+	label=replaceAnchorNames(label);
+	if (groupNode != null) groupLabel=replaceAnchorNames(groupLabel);
+	Character split=this._s;
+	String nodePatternText=getPatternText(path,split);
+	Pattern pattern=getNodePattern(nodePatternText);
+	return hideLoop_(node,patternText,label,groupNode,groupLabel,group,pattern,split);
     }
     /**
      * Unhides all children of the calling node.
@@ -3363,7 +4831,7 @@ public final class RegexNode {
     private boolean setLabelUnPaired_(String slabel,String elabel,
 				      RegexNode root, int targetlevel, Pattern pattern, Character split) { // hide current match 
 	boolean hit=false;
-	Integer sid=maxsid++;
+	Integer sid=context.maxsid++;
 	RegexNode nodeNode=getNode_(root,sid,pattern,split);
 	while (nodeNode != null) {
 	    if (nodeNode.endFoldNode != null) {
@@ -3589,6 +5057,8 @@ public final class RegexNode {
 	if (sibling == this) return false;
 	Boolean ret=null;
 	if (sibling.getParent() != getParent()) return ret;
+	indexSettle();
+	sibling.indexSettle();
 	if (parentNodeStartIndex < sibling.parentNodeStartIndex) {
 	    ret=true;
 	} else if (parentNodeStartIndex > sibling.parentNodeStartIndex) {
@@ -3610,6 +5080,8 @@ public final class RegexNode {
 	if (sibling == this) return false;
 	Boolean ret=null;
 	if (sibling.getParent() != getParent()) return ret;
+	indexSettle();
+	sibling.indexSettle();
 	if (parentNodeStartIndex < sibling.parentNodeStartIndex) {
 	    ret=false;
 	} else if (parentNodeStartIndex > sibling.parentNodeStartIndex) {
@@ -3693,12 +5165,12 @@ public final class RegexNode {
 	    RegexNode node = getNode(path);
 	    while (node !=null) {
 		cnt++;
-		node.attributes.put(attName,attObject);
+		node.setAttribute(attName,attObject);
 		node = getNode(path);
 	    }
 	} else {
 	    cnt++;
-	    attributes.put(attName,attObject);
+	    setAttribute(attName,attObject);
 	}
 	return cnt;
     }
@@ -3729,9 +5201,11 @@ public final class RegexNode {
 	return cnt;
     }
     public void setAttribute(String attName, Object attObject) {
+	if (attributes == null) attributes=new LinkedHashMap<String,Object>();
 	attributes.put(attName,attObject);
     }
     public Object removeAttribute(String attName) {
+	if (attributes == null) return null;
 	return attributes.remove(attName);
     }
     public int removeAttributeAll() {
@@ -3769,10 +5243,11 @@ public final class RegexNode {
 	//      System.out.format("         Found %s %b\n",name,object!=null);
 	//    }
 	// }
+	if (attributes == null) return null;
 	return attributes.get(attName);
     }
     private void delAttribute_(String attName) {
-	attributes.remove(attName);
+	if (attributes != null) attributes.remove(attName);
     }
     /**
      * Returns attribute object.
@@ -3880,6 +5355,1067 @@ public final class RegexNode {
 	System.out.format("******************** D E B U G   O F F ******************\n");
     }
     //
+    //******************** C O N T E X T ******************
+    //
+    /**
+      * Anchor table, node identification and search counters and pattern cache
+      * used by a node tree. Nodes made with a context, and all nodes below them,
+      * use only that context, so trees with different contexts can be processed
+      * on different threads. A context is not thread safe in itself.
+      *
+      * Nodes made without a context use a shared one, which is also the one
+      * the static methods (define, pattern cache) work on.
+      * A node linked into a tree with another context is moved to that context,
+      * which resets its getNode searches.
+      */
+    public static final class Context {
+	private final LinkedHashMap<String,String> anchorMap=new LinkedHashMap<String,String>();
+	private final LinkedHashMap<String,Integer> anchorCnt=new LinkedHashMap<String,Integer>();
+	private int nrAnchor=0;               // number of anchors defined so far
+	private AnchorMatcher anchorNameMatcher;  // made when needed after define
+	private AnchorMatcher anchorValueMatcher;
+	private int[] anchorUsedIn;           // last call that counted each anchor (see AnchorMatcher)
+	private int anchorCalls;
+	private final PatternCache patternCache;
+	private int maxidentification=-1;     // identification counter
+	private int maxsid=0;                 // getNode-search counter
+	private int nodeEpoch=0;              // changed whenever a node is renamed or moved (see nodeMatch)
+	private int nameMarks=0;              // generation counter for markNamed
+	private ForkJoinPool pool;            // pool for parallel traversals (see setParallel)
+	private int parallelMin;
+	private Context outer;                   // only in a part of a parallel traversal (see part)
+	private ArrayList<RegexNode> created;
+	private ArrayList<RegexNode> nameAdded;
+	private ArrayList<RegexNode> nameLinked;
+
+	public Context() {
+	    patternCache=new PatternCache(1024);
+	}
+	/**
+	  * Makes a context with the anchors defined in another context,
+	  * typically the template for a number of threads.
+	  */
+	public Context(Context anchors) {
+	    this(anchors,false);
+	}
+	/**
+	  * With "compiled", the anchor automata and pattern cache of the template are shared
+	  * (see Recipe). The template must not be changed while it is shared.
+	  */
+	private Context(Context anchors, boolean compiled) {
+	    for (Map.Entry<String, String> entry : anchors.anchorMap.entrySet()) {
+		anchorMap.put(entry.getKey(),entry.getValue());
+		anchorCnt.put(entry.getKey(),0);
+	    }
+	    nrAnchor=anchors.nrAnchor;
+	    if (compiled) {
+		anchorNameMatcher=anchors.anchorNameMatcher;
+		anchorValueMatcher=anchors.anchorValueMatcher;
+		patternCache=anchors.patternCache;
+	    } else {
+		patternCache=new PatternCache(1024);
+	    }
+	}
+	/**
+	  * Lets hideAll, replaceAll and unhideAll split the children of nodes with at least
+	  * minChildren children over the fork-join pool. The result, including the node
+	  * identifications, is the same as without. A null pool turns this off again.
+	  */
+	public void setParallel(ForkJoinPool pool, int minChildren) {
+	    this.pool=pool;
+	    this.parallelMin=Math.max(2,minChildren);
+	}
+	/**
+	  * Context for a part of a parallel traversal. The part numbers its new nodes from 0,
+	  * and keeps its name index changes, until it is joined.
+	  */
+	private Context part() {
+	    compile();
+	    Context part=new Context(this,true);
+	    part.outer=this;
+	    part.pool=pool;
+	    part.parallelMin=parallelMin;
+	    part.maxsid=maxsid;
+	    part.nodeEpoch=nodeEpoch;
+	    part.nameMarks=nameMarks;
+	    part.created=new ArrayList<RegexNode>();
+	    part.nameAdded=new ArrayList<RegexNode>();
+	    part.nameLinked=new ArrayList<RegexNode>();
+	    return part;
+	}
+	/**
+	  * Takes back a part, the parts must be joined in the order of the traversal.
+	  */
+	private void join(Context part) {
+	    for (RegexNode node : part.created) {
+		if (node.context == part) node.context=this;
+		node.identification=++maxidentification;
+		if (created != null) created.add(node);
+	    }
+	    maxsid=Math.max(maxsid,part.maxsid);
+	    nodeEpoch=Math.max(nodeEpoch,part.nodeEpoch)+1; // states made in the part are not valid here
+	    nameMarks=Math.max(nameMarks,part.nameMarks);
+	    for (Map.Entry<String, Integer> entry : part.anchorCnt.entrySet()) {
+		Integer cnt=anchorCnt.get(entry.getKey());
+		if (cnt != null && entry.getValue() != 0) anchorCnt.put(entry.getKey(),cnt+entry.getValue());
+	    }
+	    for (RegexNode node : part.nameAdded) {
+		if (node.context == part) node.context=this;
+		node.nameIndexAdd();
+	    }
+	    for (RegexNode node : part.nameLinked) {
+		if (node.context == part) node.context=this;
+		node.nameIndexLink();
+	    }
+	}
+	/**
+	  * The last node identification. In a part, the count of the outer context plus the
+	  * nodes made in the part so far; nodes made by the other parts are not counted.
+	  */
+	private int maxIdentification() {
+	    return (outer != null ? outer.maxIdentification()+maxidentification+1 : maxidentification);
+	}
+	/**
+	  * Makes the anchor automata, so that they can be shared.
+	  */
+	private void compile() {
+	    if (anchorNameMatcher == null) anchorNameMatcher=new AnchorMatcher(anchorMap,false);
+	    if (anchorValueMatcher == null) anchorValueMatcher=new AnchorMatcher(anchorMap,true);
+	}
+	/**
+	  * Defines an anchor name in this context (see RegexNode.define).
+	  */
+	public void define(String anchorName, String anchorValue) {
+	    String anchor=anchorMap.get(anchorName);
+	    if (anchor == null) {
+		anchorMap.put(anchorName,anchorValue);
+		anchorCnt.put(anchorName,0);
+		anchorNameMatcher=null;
+		anchorValueMatcher=null;
+	    }
+	}
+	public void define(String anchorName) {
+	    String anchor=anchorMap.get(anchorName);
+	    if (anchor == null) {
+		//if (nrAnchor == 0) {
+		//for (int id=1; id< 256; id++) {
+		//char c=(char) id;
+		//System.out.format("Anchor id: %d is %s\n",id,String.valueOf(c));
+		//}
+		//}
+		if (nrAnchor < 128) nrAnchor=128;
+		if (nrAnchor > 159 & nrAnchor < 168) nrAnchor=168;
+		anchor=getAnchor(nrAnchor++);
+		anchorMap.put(anchorName,anchor);
+		anchorCnt.put(anchorName,0);
+		anchorNameMatcher=null;
+		anchorValueMatcher=null;
+	    }
+	}
+    }
+    /**
+      * @return the context used by this node.
+      */
+    public Context getContext() {
+	return context;
+    }
+    /**
+      * Moves this node and the nodes below into the context of the tree it has been linked into.
+      */
+    private void contextLink() {
+	if (identification == -99 || parentNode == null || context == parentNode.context) return;
+	parentNode.context.nodeEpoch++;
+	contextAll(parentNode.context);
+    }
+    private void contextAll(Context context) {
+	this.context=context;
+	matchSelector=null;
+	nameMark=0;  // mark generations belong to the old context
+	nameListed=0;
+	nameMarkGen=0;
+	nodeChildMap=null; // search cursors and ids belong to the old context
+	nodeSidMap=null;
+	RegexNode child=firstChild.nextSibling;
+	while (child != lastChild) {
+	    child.contextAll(context);
+	    child=child.nextSibling;
+	}
+	if (firstChild == emptyFirst) return;
+	firstChild.context=context;
+	lastChild.context=context;
+    }
+    /**
+      * Moves this node and the nodes below from one context to another, keeping their states.
+      */
+    private void contextSwap(Context from, Context to) {
+	if (context == from) context=to;
+	if (firstChild == null) return;
+	if (firstChild != emptyFirst) {
+	    firstChild.context=to;
+	    lastChild.context=to;
+	}
+	RegexNode child=firstChild.nextSibling;
+	while (child != lastChild) {
+	    child.contextSwap(from,to);
+	    child=child.nextSibling;
+	}
+    }
+    /**
+      * Work done on each child in a traversal (see childrenAll).
+      */
+    private interface ChildWork {
+	boolean apply(RegexNode child);
+    }
+    /**
+      * True if the children of this node should be traversed in parallel.
+      */
+    private boolean parallel() {
+	return context.pool != null && indexSize(childIndex) >= context.parallelMin;
+    }
+    /**
+      * Does the work on each child (and the nodes below), split over the fork-join pool.
+      * Each part of the children gets its own context, so the parts share no state
+      * but this node and the nodes above, which are only read. The parts are joined in order.
+      *
+      * When the work on a child throws, no child after it is started, and the exception of
+      * the first child that failed is thrown, as in a sequential traversal. Unlike there,
+      * children after the failed one that other parts had already started or finished
+      * keep their changes.
+      *
+      * @return true if the work returned true for any child.
+      */
+    private boolean childrenAll(RegexNode root, Pattern pattern, Character split, boolean skipIgnored,
+				final ChildWork work) {
+	if (pattern != null && split != null) { // selector states of this node and above, before they are shared
+	    NodeSelector selector=context.patternCache.getSelector(pattern,split);
+	    if (selector != null) selectorState(root,selector);
+	}
+	indexFlush(childIndex);
+	int size=indexSize(childIndex);
+	final RegexNode[] children=new RegexNode[size];
+	int nn=0;
+	RegexNode child=firstChild.nextSibling;
+	while (child != lastChild) {
+	    if (!(skipIgnored && child.ignored)) children[nn++]=child;
+	    child=child.nextSibling;
+	}
+	int parts=Math.min(nn,context.pool.getParallelism()*4);
+	final Context outer=context;
+	final Context[] part=new Context[parts];
+	final boolean[] hits=new boolean[parts];
+	final Throwable[] errors=new Throwable[parts];
+	final AtomicInteger failed=new AtomicInteger(nn); // first child that failed
+	final RecursiveAction[] tasks=new RecursiveAction[parts];
+	for (int ii=0;ii<parts;ii++) {
+	    final int pp=ii;
+	    final int first=(int)((long)nn*ii/parts);
+	    final int last=(int)((long)nn*(ii+1)/parts);
+	    part[ii]=outer.part();
+	    tasks[ii]=new RecursiveAction() {
+		    protected void compute() {
+			for (int jj=first;jj<last && jj < failed.get();jj++) {
+			    RegexNode child=children[jj];
+			    child.contextSwap(outer,part[pp]);
+			    try {
+				if (work.apply(child)) hits[pp]=true;
+			    } catch (RuntimeException | Error e) {
+				failed.accumulateAndGet(jj,Math::min);
+				errors[pp]=e;
+				return;
+			    } finally {
+				child.contextSwap(part[pp],outer);
+			    }
+			}
+		    }
+		};
+	}
+	if (ForkJoinTask.getPool() == context.pool) {
+	    runAll(tasks);
+	} else {
+	    context.pool.invoke(new RecursiveAction() {
+		    protected void compute() {
+			runAll(tasks);
+		    }
+		});
+	}
+	for (int ii=0;ii<parts;ii++) outer.join(part[ii]);
+	boolean hit=false;
+	for (int ii=0;ii<parts;ii++) {
+	    Throwable e=errors[ii];
+	    if (e instanceof RuntimeException) throw (RuntimeException) e;
+	    if (e instanceof Error) throw (Error) e;
+	    hit=hit|hits[ii];
+	}
+	return hit;
+    }
+    // runs all tasks to the end
+    private static void runAll(RecursiveAction[] tasks) {
+	for (int ii=1;ii<tasks.length;ii++) tasks[ii].fork();
+	if (tasks.length > 0) tasks[0].quietlyInvoke();
+	for (int ii=1;ii<tasks.length;ii++) tasks[ii].quietlyJoin();
+    }
+    //
+    //******************** B A T C H ******************
+    //
+    /**
+      * A recorded sequence of RegexNode operations, that can be run over many documents.
+      * The anchors are defined once in the recipe, and the documents share the anchor
+      * automata and compiled patterns of the recipe, while each document gets its own
+      * context (see Context). For example:
+      *
+      *   RegexNode.Recipe recipe=new RegexNode.Recipe()
+      *       .define("<String>")
+      *       .hideAll("string", "([\\\"\\\'])[^\\\"\\\'\\n]*\\1", "<String>", "*")
+      *       .ignoreAll("string")
+      *       .step(node -> { while (node.hideAny(...)) node.hideNodeGroup(...); });
+      *   List<RegexNode.Result<String>> res=recipe.run(files, RegexNode::encode, executor, 64);
+      *
+      * The recipe must not be changed while it runs.
+      */
+    public static final class Recipe {
+	/**
+	  * One recorded operation.
+	  */
+	public interface Step {
+	    void apply(RegexNode node);
+	}
+	private final Context context=new Context();
+	private final ArrayList<Step> steps=new ArrayList<Step>();
+
+	public Recipe define(String anchorName, String anchorValue) {
+	    context.define(anchorName,anchorValue);
+	    return this;
+	}
+	public Recipe define(String anchorName) {
+	    context.define(anchorName);
+	    return this;
+	}
+	public Recipe step(Step step) {
+	    steps.add(step);
+	    return this;
+	}
+	public Recipe hideAll(final String node, final String patternText, final String label, final String... path) {
+	    return step(n -> n.hideAll(node,patternText,label,path));
+	}
+	public Recipe lexAll(final Lexer lexer, final String... path) {
+	    return step(n -> n.lexAll(lexer,path));
+	}
+	public Recipe hideLoop(final String node, final String patternText, final String label,
+			       final String groupNode, final String groupLabel, final int group, final String... path) {
+	    return step(n -> n.hideLoop(node,patternText,label,groupNode,groupLabel,group,path));
+	}
+	public Recipe hideNodeGroup(final String groupNode, final String label, final int group, final String... path) {
+	    return step(n -> n.hideNodeGroup(groupNode,label,group,path));
+	}
+	public Recipe ignoreAll(final String... path) {
+	    return step(n -> n.ignoreAll(path));
+	}
+	public Recipe unignoreAll(final String... path) {
+	    return step(n -> n.unignoreAll(path));
+	}
+	public Recipe replaceAll(final String patternText, final String replacementText, final String... path) {
+	    return step(n -> n.replaceAll(patternText,replacementText,path));
+	}
+	public Recipe setNodeNameAll(final String newnode, final String... path) {
+	    return step(n -> n.setNodeNameAll(newnode,path));
+	}
+	public Recipe unhideAll(final String... path) {
+	    return step(n -> n.unhideAll(path));
+	}
+	/**
+	  * Runs the recipe on one document, on the calling thread.
+	  */
+	public RegexNode apply(String text) {
+	    context.compile();
+	    RegexNode node=new RegexNode(new Context(context,true),text);
+	    for (Step step : steps) step.apply(node);
+	    return node;
+	}
+	/**
+	  * Runs the recipe on each input, on the executor (for instance a fixed thread pool,
+	  * or Executors.newVirtualThreadPerTaskExecutor()).
+	  *
+	  * @param inputs
+	  *        documents, either text (CharSequence) or files (java.nio.file.Path, read as UTF-8).
+	  * @param output
+	  *        makes the result kept for each document (for instance RegexNode::encode), so
+	  *        that the node tree itself can be dropped.
+	  * @param executor
+	  *        runs the documents.
+	  * @param maxInFlight
+	  *        maximum number of documents read or processed at the same time; this
+	  *        method waits before handing more documents to the executor.
+	  *
+	  * @return one result per input, in input order. Errors are kept in the result.
+	  */
+	public <T> List<Result<T>> run(List<?> inputs, final Function<RegexNode,T> output,
+				       Executor executor, int maxInFlight) throws InterruptedException {
+	    if (maxInFlight < 1) throw new IllegalArgumentException("maxInFlight must be positive");
+	    context.compile();
+	    final ArrayList<Result<T>> results=new ArrayList<Result<T>>(inputs.size());
+	    final Semaphore inFlight=new Semaphore(maxInFlight);
+	    for (int ii=0;ii<inputs.size();ii++) {
+		final Result<T> result=new Result<T>(ii,inputs.get(ii));
+		results.add(result);
+		inFlight.acquire();
+		try {
+		    executor.execute(() -> {
+			    try {
+				result.run(this,output);
+			    } finally {
+				inFlight.release();
+			    }
+			});
+		} catch (RuntimeException e) {
+		    inFlight.release();
+		    throw e;
+		}
+	    }
+	    inFlight.acquire(maxInFlight); // wait for the last documents
+	    inFlight.release(maxInFlight);
+	    return results;
+	}
+	/**
+	  * Runs the recipe on a text too large to be held in memory, for instance a log file,
+	  * one chunk at a time, and writes the text of each chunk with all hidden text put
+	  * back in place (see getTextAll) to "out" as soon as it is done.
+	  *
+	  * A chunk is as many whole records as fit in chunkSize characters, where records end
+	  * with a match of "delimiter". The unfinished record at the end of what has been read
+	  * is carried over to the next chunk, and a record longer than chunkSize is read to
+	  * its end, so matches that do not span a delimiter are found as in the whole text.
+	  *
+	  * @param in
+	  *        the text.
+	  * @param out
+	  *        where the resulting text is written, chunk by chunk.
+	  * @param delimiter
+	  *        pattern matching the end of a record, for instance "\n" or "\n(?=\S)"
+	  *        (continuation lines start with white space).
+	  * @param chunkSize
+	  *        number of characters processed at a time, unless a record is longer.
+	  *
+	  * @return the number of chunks.
+	  */
+	public long stream(Reader in, Appendable out, String delimiter, int chunkSize) throws IOException {
+	    if (chunkSize < 1) throw new IllegalArgumentException("chunkSize must be positive");
+	    context.compile();
+	    Records records=new Records(context.patternCache.get(delimiter));
+	    StringBuilder carry=new StringBuilder(chunkSize+8192); // read, not processed yet
+	    char[] buffer=new char[8192];
+	    int want=chunkSize;
+	    boolean end=false;
+	    long chunks=0;
+	    while (true) {
+		while (! end && carry.length() < want) {
+		    int len=in.read(buffer);
+		    if (len < 0) {
+			end=true;
+		    } else {
+			carry.append(buffer,0,len);
+		    }
+		}
+		if (carry.length() == 0) return chunks;
+		int stop=(end ? carry.length() : records.last(carry));
+		if (stop <= 0) { // no whole record yet
+		    want=carry.length()+chunkSize;
+		    continue;
+		}
+		RegexNode node=apply(carry.substring(0,stop));
+		carry.delete(0,stop);
+		records.cut(stop);
+		node.getTextAll(out);
+		chunks++;
+		want=chunkSize;
+	    }
+	}
+	/**
+	  * Runs the recipe on a UTF-8 text read from a channel (see stream(Reader,...)).
+	  */
+	public long stream(ReadableByteChannel in, Appendable out, String delimiter, int chunkSize) throws IOException {
+	    return stream(Channels.newReader(in,StandardCharsets.UTF_8.newDecoder(),-1),out,delimiter,chunkSize);
+	}
+    }
+    /**
+      * Finds the record ends in the text read by Recipe.stream. The text only grows at the
+      * end between calls, so the search goes on where the last one stopped, and a record
+      * longer than a chunk is not searched again for every chunk that is added.
+      */
+    private static final class Records {
+	private final Pattern cut;
+	private int scan=0; // no delimiter that more text can not change starts before this
+	private int stop=-1; // end of the last one found
+	private Records(Pattern cut) {
+	    this.cut=cut;
+	}
+	// end of the last delimiter that more text can not change, -1 if none
+	private int last(CharSequence text) {
+	    int len=text.length();
+	    Matcher matcher=cut.matcher(text);
+	    matcher.useTransparentBounds(true); // look-arounds and ^ see the text before scan
+	    matcher.useAnchoringBounds(false);
+	    matcher.region(scan,len);
+	    while (matcher.find() && ! matcher.hitEnd()) {
+		stop=matcher.end();
+		scan=stop;
+	    }
+	    // some search from scan on needs more text; skip the positions where a match
+	    // fails before the end of the text, as no text added later can change that
+	    while (scan < len) {
+		matcher.region(scan,len);
+		boolean found=matcher.lookingAt();
+		if (matcher.hitEnd()) break;
+		if (found) {
+		    stop=matcher.end();
+		    scan=Math.max(stop,scan+1);
+		} else {
+		    scan++;
+		}
+	    }
+	    return stop;
+	}
+	// the text before stop was taken
+	private void cut(int stop) {
+	    scan=Math.max(0,scan-stop);
+	    this.stop=(this.stop > stop ? this.stop-stop : -1);
+	}
+    }
+    /**
+      * Result of running a Recipe on one document.
+      */
+    public static final class Result<T> {
+	private final int index;
+	private final Object input;
+	private T output;
+	private Throwable error;
+	private long readNanos;
+	private long processNanos;
+	private Result(int index, Object input) {
+	    this.index=index;
+	    this.input=input;
+	}
+	private void run(Recipe recipe, Function<RegexNode,T> out) {
+	    try {
+		long t0=System.nanoTime();
+		String text;
+		if (input instanceof Path) {
+		    text=new String(Files.readAllBytes((Path) input),StandardCharsets.UTF_8);
+		} else {
+		    text=input.toString();
+		}
+		long t1=System.nanoTime();
+		RegexNode node=recipe.apply(text);
+		output=out.apply(node);
+		long t2=System.nanoTime();
+		readNanos=t1-t0;
+		processNanos=t2-t1;
+	    } catch (IOException | RuntimeException | StackOverflowError e) {
+		error=e;
+	    }
+	}
+	/** @return position of the document in the input list. */
+	public int getIndex() {
+	    return index;
+	}
+	public Object getInput() {
+	    return input;
+	}
+	/** @return the output made from the document, null if it failed. */
+	public T getOutput() {
+	    return output;
+	}
+	/** @return the error processing the document, null if it succeeded. */
+	public Throwable getError() {
+	    return error;
+	}
+	/** @return time spent reading the document (files only). */
+	public long getReadNanos() {
+	    return readNanos;
+	}
+	/** @return time spent running the recipe and making the output. */
+	public long getProcessNanos() {
+	    return processNanos;
+	}
+    }
+    //
+    //******************** P A T T E R N   C A C H E ******************
+    //
+    /**
+      * Sets the maximum number of compiled patterns kept in the shared pattern cache.
+      * The least recently used patterns are dropped first.
+      *
+      * @param limit
+      *        maximum number of patterns in the cache.
+      */
+    public static void setPatternCacheLimit(int limit) {
+	shared.patternCache.setLimit(limit);
+    }
+    public static int getPatternCacheLimit() {
+	return shared.patternCache.getLimit();
+    }
+    /**
+      * @return number of compiled patterns currently in the shared pattern cache.
+      */
+    public static int getPatternCacheSize() {
+	return shared.patternCache.size();
+    }
+    /**
+      * @return number of pattern look-ups that found a compiled pattern in the cache.
+      */
+    public static long getPatternCacheHits() {
+	return shared.patternCache.getHits();
+    }
+    /**
+      * @return number of pattern look-ups that had to compile the pattern.
+      */
+    public static long getPatternCacheMisses() {
+	return shared.patternCache.getMisses();
+    }
+    /**
+      * Removes all patterns from the shared pattern cache and resets the hit/miss counts.
+      */
+    public static void clearPatternCache() {
+	shared.patternCache.clear();
+    }
+    /**
+      * Bounded map from pattern text to compiled pattern, in least recently used order.
+      * All access is synchronized, patterns are compiled outside the lock.
+      */
+    private static final class PatternCache {
+	private int limit;
+	private long hits;
+	private long misses;
+	private final LinkedHashMap<String,Pattern> map=new LinkedHashMap<String,Pattern>(64,0.75f,true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,Pattern> eldest) {
+		    return size() > limit;
+		}
+	    };
+	private final LinkedHashMap<String,NodeSelector> selectors=new LinkedHashMap<String,NodeSelector>(64,0.75f,true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,NodeSelector> eldest) {
+		    return size() > limit;
+		}
+	    };
+	private final LinkedHashMap<String,long[]> required=new LinkedHashMap<String,long[]>(64,0.75f,true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,long[]> eldest) {
+		    return size() > limit;
+		}
+	    };
+	private final LinkedHashMap<String,Template> templates=new LinkedHashMap<String,Template>(64,0.75f,true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,Template> eldest) {
+		    return size() > limit;
+		}
+	    };
+	private volatile Pattern lastPattern;
+	private final LongAdder lastHits=new LongAdder();
+	private volatile NodeSelector lastSelector;
+	private volatile Object[] lastRequired;
+	private volatile Template lastTemplate;
+	private PatternCache(int limit) {
+	    this.limit=limit;
+	}
+	/**
+	  * Returns the compiled pattern. The last one is kept outside the lock, since the
+	  * same pattern is usually asked for again and again; its hits are counted apart.
+	  */
+	private Pattern get(String patternText) {
+	    Pattern pattern=lastPattern;
+	    if (pattern != null && pattern.pattern().equals(patternText)) {
+		lastHits.increment();
+		return pattern;
+	    }
+	    pattern=lookup(patternText);
+	    if (pattern == null) {
+		pattern=Pattern.compile(patternText);
+		store(patternText,pattern);
+	    }
+	    return pattern;
+	}
+	private synchronized Pattern lookup(String patternText) {
+	    Pattern pattern=map.get(patternText);
+	    if (pattern == null) {
+		misses++;
+	    } else {
+		hits++;
+		lastPattern=pattern;
+	    }
+	    return pattern;
+	}
+	/**
+	  * Returns the node path selector for a pattern made by getPatternText,
+	  * or null if the pattern can only be matched as a regular expression.
+	  */
+	private NodeSelector getSelector(Pattern pattern, char split) {
+	    String patternText=pattern.pattern();
+	    NodeSelector selector=lastSelector;
+	    if (selector == null || selector.split != split || ! selector.patternText.equals(patternText)) {
+		selector=lookupSelector(patternText,split);
+		lastSelector=selector;
+	    }
+	    return (selector.kind == null ? null : selector);
+	}
+	private synchronized NodeSelector lookupSelector(String patternText, char split) {
+	    NodeSelector selector=selectors.get(patternText);
+	    if (selector == null || selector.split != split) {
+		selector=new NodeSelector(patternText,split);
+		if (limit > 0) selectors.put(patternText,selector);
+	    }
+	    return selector;
+	}
+	/**
+	  * Returns the characters that a text must contain for the pattern to match
+	  * (see Required), as a character mask.
+	  */
+	private long[] getRequired(String patternText) {
+	    Object[] last=lastRequired;
+	    if (last != null && last[0].equals(patternText)) return (long[]) last[1];
+	    long[] mask=lookupRequired(patternText);
+	    lastRequired=new Object[] {patternText,mask};
+	    return mask;
+	}
+	private synchronized long[] lookupRequired(String patternText) {
+	    long[] mask=required.get(patternText);
+	    if (mask == null) {
+		mask=Required.of(patternText);
+		if (limit > 0) required.put(patternText,mask);
+	    }
+	    return mask;
+	}
+	/**
+	  * Returns the parsed replacement text. The matcher gives the group count, which is
+	  * only asked for if a group reference is followed by a digit.
+	  */
+	private Template getTemplate(String replacementText, Matcher matcher) {
+	    Template template=lastTemplate;
+	    if (template == null || ! template.text.equals(replacementText)) {
+		template=lookupTemplate(replacementText);
+	    }
+	    if (template == null || (template.groups != -1 && template.groups != matcher.groupCount())) {
+		template=new Template(replacementText,matcher);
+		storeTemplate(template);
+	    }
+	    lastTemplate=template;
+	    return template;
+	}
+	private synchronized Template lookupTemplate(String replacementText) {
+	    return templates.get(replacementText);
+	}
+	private synchronized void storeTemplate(Template template) {
+	    if (limit > 0) templates.put(template.text,template);
+	}
+	private synchronized void store(String patternText, Pattern pattern) {
+	    if (limit > 0) {
+		map.put(patternText,pattern);
+		lastPattern=pattern;
+	    }
+	}
+	private synchronized void setLimit(int limit) {
+	    this.limit=limit;
+	    if (limit == 0) lastPattern=null;
+	    trim(map);
+	    trim(selectors);
+	    trim(required);
+	    trim(templates);
+	}
+	private void trim(LinkedHashMap<String,?> cache) {
+	    Iterator<String> it=cache.keySet().iterator();
+	    while (cache.size() > limit) {
+		it.next();
+		it.remove();
+	    }
+	}
+	private synchronized int getLimit() {
+	    return limit;
+	}
+	private synchronized int size() {
+	    return map.size();
+	}
+	private synchronized long getHits() {
+	    return hits+lastHits.sum();
+	}
+	private synchronized long getMisses() {
+	    return misses;
+	}
+	private synchronized void clear() {
+	    map.clear();
+	    selectors.clear();
+	    required.clear();
+	    templates.clear();
+	    lastPattern=null;
+	    lastSelector=null;
+	    lastRequired=null;
+	    lastTemplate=null;
+	    lastHits.reset();
+	    hits=0;
+	    misses=0;
+	}
+    }
+    /**
+      * Finds the characters that any text matched by a pattern must contain. This is a
+      * conservative guess: only literal characters count, and not those in alternatives,
+      * negative look-arounds, optional parts, or letters after a case-insensitive flag.
+      * Patterns with comments (?x) require nothing.
+      */
+    private static final class Required {
+	private static final long[] NONE=new long[maskWords];
+	private final String p;
+	private int pos;
+	private boolean caseless;
+	private boolean failed;
+	private Required(String p) {
+	    this.p=p;
+	}
+	private static long[] of(String patternText) {
+	    Required r=new Required(patternText);
+	    long[] mask;
+	    try {
+		mask=r.sequence();
+	    } catch (IndexOutOfBoundsException e) { // incomplete pattern
+		return NONE;
+	    }
+	    if (r.failed || r.pos != patternText.length()) return NONE;
+	    return mask;
+	}
+	// atoms until ')' or the end of the pattern
+	private long[] sequence() {
+	    long[] mask=new long[maskWords];
+	    boolean alternatives=false;
+	    while (pos < p.length() && p.charAt(pos) != ')') {
+		if (p.charAt(pos) == '|') {
+		    alternatives=true;
+		    pos++;
+		    continue;
+		}
+		long[] atom=atom();
+		if (optional()) atom=null;
+		if (atom != null) maskOr(mask,atom);
+	    }
+	    return (alternatives ? NONE : mask);
+	}
+	// returns null if the atom does not need a known character
+	private long[] atom() {
+	    char c=p.charAt(pos++);
+	    switch (c) {
+	    case '\\':
+		return escape();
+	    case '[':
+		skipClass();
+		return null;
+	    case '(':
+		return group();
+	    case '.':
+	    case '^':
+	    case '$':
+		return null;
+	    default:
+		return literal(c);
+	    }
+	}
+	private long[] literal(char c) {
+	    if (caseless && Character.toUpperCase(c) != Character.toLowerCase(c)) return null;
+	    long[] mask=new long[maskWords];
+	    maskAdd(mask,c);
+	    return mask;
+	}
+	private long[] escape() {
+	    char c=p.charAt(pos++);
+	    switch (c) {
+	    case 't': return literal('\t');
+	    case 'n': return literal('\n');
+	    case 'r': return literal('\r');
+	    case 'f': return literal('\f');
+	    case 'a': return literal('\u0007');
+	    case 'e': return literal('\u001B');
+	    case 'Q':
+		int end=p.indexOf("\\E",pos);
+		pos=(end < 0 ? p.length() : end+2);
+		return null;
+	    case 'x':
+	    case 'p':
+	    case 'P':
+	    case 'N':
+		if (p.charAt(pos) == '{') {
+		    pos=p.indexOf('}',pos)+1;
+		    if (pos == 0) failed=true;
+		} else {
+		    pos+=(c == 'x' ? 2 : 1);
+		}
+		return null;
+	    case 'u':
+		pos+=4;
+		return null;
+	    case 'c':
+		pos++;
+		return null;
+	    case 'k':
+		pos=p.indexOf('>',pos)+1;
+		if (pos == 0) failed=true;
+		return null;
+	    default:
+		if (Character.isLetterOrDigit(c)) { // classes, boundaries, octal escapes and back references
+		    while (Character.isDigit(c) && pos < p.length() && Character.isDigit(p.charAt(pos))) pos++;
+		    return null;
+		}
+		return literal(c);
+	    }
+	}
+	private void skipClass() {
+	    int depth=1;
+	    if (p.charAt(pos) == '^') pos++;
+	    if (p.charAt(pos) == ']') pos++; // a leading ']' is a literal
+	    while (depth > 0) {
+		char c=p.charAt(pos++);
+		if (c == '\\') {
+		    if (p.charAt(pos) == 'Q') {
+			int end=p.indexOf("\\E",pos);
+			pos=(end < 0 ? p.length() : end+2);
+		    } else {
+			pos++;
+		    }
+		} else if (c == '[') {
+		    depth++;
+		} else if (c == ']') {
+		    depth--;
+		}
+	    }
+	}
+	private long[] group() {
+	    boolean keep=true;
+	    if (p.charAt(pos) == '?') {
+		pos++;
+		char c=p.charAt(pos);
+		if (c == ':' || c == '>' || c == '=') {
+		    pos++;
+		} else if (c == '!') {
+		    pos++;
+		    keep=false;
+		} else if (c == '<') {
+		    pos++;
+		    c=p.charAt(pos);
+		    if (c == '=') {
+			pos++;
+		    } else if (c == '!') {
+			pos++;
+			keep=false;
+		    } else { // named group
+			pos=p.indexOf('>',pos)+1;
+			if (pos == 0) failed=true;
+		    }
+		} else { // flags, (?i) or (?i:...)
+		    boolean on=true;
+		    while (p.charAt(pos) != ')' && p.charAt(pos) != ':') {
+			c=p.charAt(pos++);
+			if (c == '-') on=false;
+			if (c == 'x') failed=true;
+			if (c == 'i' && on) caseless=true;
+		    }
+		    if (p.charAt(pos++) == ')') return null;
+		}
+	    }
+	    long[] inner=sequence();
+	    if (p.charAt(pos++) != ')') failed=true;
+	    return (keep ? inner : null);
+	}
+	// reads a quantifier, returns true if the atom may be left out
+	private boolean optional() {
+	    if (pos >= p.length()) return false;
+	    char c=p.charAt(pos);
+	    boolean optional;
+	    if (c == '?' || c == '*') {
+		pos++;
+		optional=true;
+	    } else if (c == '+') {
+		pos++;
+		optional=false;
+	    } else if (c == '{') {
+		int end=p.indexOf('}',pos);
+		if (end < 0) {
+		    failed=true;
+		    return true;
+		}
+		String min=p.substring(pos+1,end).split(",",-1)[0].trim();
+		optional=(min.isEmpty() || Integer.parseInt(min) == 0);
+		pos=end+1;
+	    } else {
+		return false;
+	    }
+	    if (pos < p.length() && (p.charAt(pos) == '?' || p.charAt(pos) == '+')) pos++; // lazy or possessive
+	    return optional;
+	}
+    }
+    /**
+      * A replacement text ("$1" is group 1, "\\$" is "$") split into literal text and group
+      * references. A reference takes as many digits as the pattern has groups, so a template
+      * with a digit after a reference is only valid for the group count it was made for.
+      */
+    private static final class Template {
+	private final String text;
+	private final String[] literals; // text before each reference, and after the last one
+	private final int[] refs;
+	private final int groups;        // group count used, -1 if none was needed
+	private final String error;      // the reference after the last one is invalid, "" for a trailing "\\"
+	private Template(String text, Matcher matcher) {
+	    ArrayList<String> literals=new ArrayList<String>();
+	    ArrayList<Integer> refs=new ArrayList<Integer>();
+	    StringBuilder literal=new StringBuilder();
+	    int groups=-1;
+	    String error=null;
+	    int cursor=0;
+	    while (cursor < text.length() && error == null) {
+		char nextChar=text.charAt(cursor++);
+		if (nextChar == '\\') {
+		    if (cursor >= text.length()) {
+			error="";
+		    } else {
+			literal.append(text.charAt(cursor++));
+		    }
+		} else if (nextChar == '$') {
+		    if (cursor >= text.length()) {
+			error=String.format("Illegal group reference in \"%s\"",text);
+			break;
+		    }
+		    // The first number is always a group
+		    int refNum=text.charAt(cursor)-'0';
+		    if (refNum < 0 || refNum > 9) {
+			error="Illegal group reference";
+			break;
+		    }
+		    cursor++;
+		    // Capture the largest legal group string
+		    while (cursor < text.length()) {
+			int nextDigit=text.charAt(cursor)-'0';
+			if (nextDigit < 0 || nextDigit > 9) break; // not a number
+			if (groups == -1) groups=matcher.groupCount();
+			int newRefNum=refNum*10+nextDigit;
+			if (groups < newRefNum) break;
+			refNum=newRefNum;
+			cursor++;
+		    }
+		    literals.add(literal.toString());
+		    refs.add(refNum);
+		    literal.setLength(0);
+		} else {
+		    literal.append(nextChar);
+		}
+	    }
+	    literals.add(literal.toString());
+	    this.text=text;
+	    this.literals=literals.toArray(new String[literals.size()]);
+	    this.refs=new int[refs.size()];
+	    for (int ii=0;ii<this.refs.length;ii++) this.refs[ii]=refs.get(ii);
+	    this.groups=groups;
+	    this.error=error;
+	}
+	private void fail() {
+	    if (error == null) return;
+	    if (error.isEmpty()) throw new StringIndexOutOfBoundsException(text.length());
+	    throw new IllegalArgumentException(error);
+	}
+    }
+    //
     //
     //******************** P R I V A T E   M E T H O D S ******************
     //
@@ -3887,7 +6423,7 @@ public final class RegexNode {
 	if (num==0 & nMatchGroups==-1) {
 	    return 0;
 	} else if (num>=0 & num <= nMatchGroups) {
-	    return matchStartIndexShifted.get(num);
+	    return match.start(num);
 	} else {
 	    return -1;
 	}
@@ -3896,25 +6432,25 @@ public final class RegexNode {
 	if (num==0 & nMatchGroups==-1) {
 	    return 0;
 	} else if (num>=0 & num <= nMatchGroups) {
-	    return matchStartIndexOriginal.get(num);
+	    return match.startOriginal(num);
 	} else {
 	    return -1;
 	}
     }
     private Integer end(int num) {
 	if (num==0 & nMatchGroups==-1) {
-	    return resultText.length();
+	    return text().length();
 	} else if (num>=0 & num <= nMatchGroups) {
-	    return matchEndIndexShifted.get(num);
+	    return match.end(num);
 	} else {
 	    return -1;
 	}
     }
     private Integer endOriginal(int num) {
 	if (num==0 & nMatchGroups==-1) {
-	    return resultText.length();
+	    return text().length();
 	} else if (num>=0 & num <= nMatchGroups) {
-	    return matchEndIndexOriginal.get(num);
+	    return match.endOriginal(num);
 	} else {
 	    return -1;
 	}
@@ -3994,6 +6530,7 @@ public final class RegexNode {
       */
     private void getNodeReset_(RegexNode root, Integer sid) { // focus on next node to specified sublevel (sublevel<0: no limit; sublevel==0: no children checked)
 	//System.out.format("Entering getNode %s (sublevel=%d)\n",identification,sublevel);
+	if (nodeChildMap == null) return;
 	RegexNode nodeChild=nodeChildMap.get(sid);  // child being currently processed in this search
 	if (nodeChild != null) {
 	    nodeChild.getNodeReset_(root,sid);
@@ -4019,10 +6556,19 @@ public final class RegexNode {
 	return getNode_(root,sid,getNewPattern(nodePatternText),split);
     }
     private RegexNode getNode_(RegexNode root, Integer sid, Pattern pattern, Character split) { // focus on next node
+	return getNode_(root,sid,pattern,split,markNamed(pattern,split));
+    }
+    private RegexNode getNode_(RegexNode root, Integer sid, Pattern pattern, Character split, int mark) { // focus on next node
 	if (debug) System.out.format(" getNode %s Entering with nodes: %d %s\n",getIdentification(),sid,toString());
 	//System.out.format("Entering getNode %s \n",identification);
+	if (nodeChildMap == null) nodeChildMap=new HashMap<Integer,RegexNode>();
 	RegexNode nodeChild=nodeChildMap.get(sid);  // child being currently processed in this search
-	if (nodeChild != null) {
+	if (nodeChild == emptyFirst) {      // children may have been added since
+	    nodeChild=firstChild;
+	} else if (nodeChild == emptyLast) {
+	    nodeChild=lastChild;
+	}
+	if (nodeChild != null && nodeChild != emptyFirst && nodeChild != emptyLast) {
 	    if (debug) System.out.format(" getNode %s has nodeChild defined %s\n",identification,nodeChild.identification);
 	    if (nodeChild.parentNode != this) {
 		System.out.format(" getNode %s Warning unexpected structure change.\n",identification);
@@ -4053,10 +6599,14 @@ public final class RegexNode {
 				  nodeChild.parentNode.identification,
 				  toString());
 		throw new IllegalStateException("Parent mismatch!");
+	    } else if (mark != 0 && nodeChild.nameMark != mark &&
+		       (nodeChild.nodeChildMap == null || ! nodeChild.nodeChildMap.containsKey(sid))) {
+		nodeChild=nodeChild.nextSibling; // no node with the name below
+		nodeChildMap.put(sid,nodeChild);
 	    } else {
 		if (debug) System.out.format(" getNode %s checking child %s \n",
 					     identification,nodeChild.identification);
-		RegexNode nodeSub=nodeChild.getNode_(root,sid,pattern,split);
+		RegexNode nodeSub=nodeChild.getNode_(root,sid,pattern,split,mark);
 		if (debug) System.out.format(" getNode %s checking child %s done\n",
 					     identification,nodeChild.identification);
 		if (nodeSub != null) {
@@ -4090,6 +6640,12 @@ public final class RegexNode {
 	if (pattern == null || split == null) { // pattern matches all way to top
 	    return getNumberOfParents(root);
 	}
+	NodeSelector selector=context.patternCache.getSelector(pattern,split);
+	if (selector != null) {
+	    int len=selectorState(root,selector)[0];
+	    if (debug) System.out.format("Matching: \"%s\" %s\n",pattern,(len >= 0 ? "+++ LEVELS="+(len-1) : "---"));
+	    return (len >= 0 ? len-1 : null);
+	}
 	String parentNodeText=getParentNodeNames(root,split);
 	Matcher matcher=pattern.matcher(parentNodeText);
 	Integer level=0;
@@ -4108,7 +6664,154 @@ public final class RegexNode {
 	}
 	return level;
     }
-    private String getPatternText(String[] path, Character split) {
+    /**
+      * Returns the selector state of this node, derived from the state of the parent.
+      * The states are kept in the nodes until a node is renamed or moved.
+      */
+    private int[] selectorState(RegexNode root, NodeSelector selector) {
+	if (matchSelector == selector && matchRoot == root && matchEpoch == context.nodeEpoch) return matchState;
+	int[] above;
+	if (this == root || parentNode == null) {
+	    above=selector.top;
+	} else {
+	    above=parentNode.selectorState(root,selector);
+	}
+	if (matchState == null || matchState.length != above.length) matchState=new int[above.length];
+	selector.step(node,symbol,above,matchState);
+	matchSelector=selector;
+	matchRoot=root;
+	matchEpoch=context.nodeEpoch;
+	return matchState;
+    }
+    /**
+      * Automaton for a node path made by getPatternText, matched against
+      * the node names from the node and up to the root, in the same way as the regular
+      * expression would match the "¤node¤parent¤...¤" string.
+      *
+      * The state of a node holds, for each element of the path, the number of
+      * node names matched by the elements from there and up (-1 if no match),
+      * and is derived from the state of the parent node.
+      */
+    private static final class NodeSelector {
+	private static final int literal=0;
+	private static final int any=1;      // "*"
+	private static final int anyPath=2;  // "..."
+	private static final int end=3;      // "$"
+	private final String patternText;
+	private final char split;
+	private int[] kind;                  // null if the pattern must be matched as a regex
+	private String[] name;
+	private int[] symbol;                // symbol of each name
+	private int[] top;                   // state above the root
+	private NodeSelector(String patternText, char split) {
+	    this.patternText=patternText;
+	    this.split=split;
+	    if (split == '\\' || "[]|?^$.()*+{}-".indexOf(split) != -1 || plain(String.valueOf(split))) return;
+	    if (patternText.length() < 2 || patternText.charAt(0) != '^' || patternText.charAt(1) != split) return;
+	    String anyText="[a-zA-Z0-9\\.]*"+split;
+	    String anyPathText="[a-zA-Z0-9\\."+split+"]*";
+	    ArrayList<Integer> kinds=new ArrayList<Integer>();
+	    ArrayList<String> names=new ArrayList<String>();
+	    int pos=2;
+	    while (pos < patternText.length()) {
+		if (patternText.startsWith(anyText,pos)) {
+		    kinds.add(any);
+		    names.add(null);
+		    pos=pos+anyText.length();
+		} else if (patternText.startsWith(anyPathText,pos)) {
+		    kinds.add(anyPath);
+		    names.add(null);
+		    pos=pos+anyPathText.length();
+		} else if (patternText.charAt(pos) == '$') {
+		    kinds.add(end);
+		    names.add(null);
+		    pos=pos+1;
+		} else {
+		    int next=patternText.indexOf(split,pos);
+		    if (next == -1) return;
+		    String literalName=unIron(patternText.substring(pos,next));
+		    if (literalName == null) return;
+		    kinds.add(literal);
+		    names.add(literalName);
+		    pos=next+1;
+		}
+	    }
+	    int k=kinds.size();
+	    kind=new int[k];
+	    name=new String[k];
+	    symbol=new int[k];
+	    top=new int[k+1];
+	    for (int jj=0;jj<k;jj++) {
+		kind[jj]=kinds.get(jj);
+		name[jj]=names.get(jj);
+		symbol[jj]=(name[jj] == null ? -1 : symbolOf(name[jj]));
+	    }
+	    top[k]=0;
+	    for (int jj=k-1;jj>=0;jj--) {
+		top[jj]=((kind[jj] == anyPath || kind[jj] == end) ? top[jj+1] : -1);
+	    }
+	}
+	/**
+	  * Undo "iron", returns null if the name holds other regular expression characters.
+	  */
+	private static String unIron(String s) {
+	    StringBuilder res=new StringBuilder(s.length());
+	    for (int ii=0;ii<s.length();ii++) {
+		char c=s.charAt(ii);
+		if (c == '\\') {
+		    ii++;
+		    if (ii == s.length() || "()+-*.{}".indexOf(s.charAt(ii)) == -1) return null;
+		    res.append(s.charAt(ii));
+		} else if ("[]|?^$.()*+{}".indexOf(c) != -1) {
+		    return null;
+		} else {
+		    res.append(c);
+		}
+	    }
+	    return res.toString();
+	}
+	/**
+	  * true if all characters of s are matched by "[a-zA-Z0-9\\.]"
+	  */
+	private static boolean plain(String s) {
+	    return plain(s,s.length());
+	}
+	private static boolean plain(String s, int length) {
+	    for (int ii=0;ii<length;ii++) {
+		char c=s.charAt(ii);
+		if (! ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '.')) return false;
+	    }
+	    return true;
+	}
+	/**
+	  * Makes the state of a node with name "nodeName" from the state of its parent ("above").
+	  */
+	private void step(String nodeName, int nodeSymbol, int[] above, int[] state) {
+	    if (nodeName == null) nodeName="null";
+	    int k=kind.length;
+	    state[k]=0;
+	    for (int jj=k-1;jj>=0;jj--) {
+		int len=-1;
+		if (kind[jj] == literal) {
+		    if (above[jj+1] >= 0 && nodeSymbol == symbol[jj]) len=above[jj+1]+1;
+		} else if (kind[jj] == any) {
+		    if (above[jj+1] >= 0 && plain(nodeName)) len=above[jj+1]+1;
+		} else if (kind[jj] == anyPath) {
+		    if (above[jj] >= 0 && plain(nodeName)) { // "..." swallows the node name
+			len=above[jj]+1;
+		    } else if (jj+1 < k && kind[jj+1] == literal && above[jj+2] >= 0 &&
+			       nodeName.length() > name[jj+1].length() && nodeName.endsWith(name[jj+1]) &&
+			       plain(nodeName,nodeName.length()-name[jj+1].length())) { // "..." swallows start of node name
+			len=above[jj+2]+1;
+		    } else {                             // "..." matches nothing here
+			len=state[jj+1];
+		    }
+		}
+		state[jj]=len;
+	    }
+	}
+    }
+    private static String getPatternText(String[] path, Character split) {
 	String patternNodeText = "^"+split;
 	for (int ii=path.length-1; ii >= 0;ii--) {
 	    if (path[ii].equals("$")) { 
@@ -4124,7 +6827,7 @@ public final class RegexNode {
 	return patternNodeText;
     }
     private Pattern getNewPattern(String nodePatternText) {
-	return Pattern.compile(nodePatternText);
+	return context.patternCache.get(nodePatternText);
     }
 
     private Integer nodeMatchOld2(RegexNode root, String[] path) {
@@ -4386,13 +7089,13 @@ public final class RegexNode {
       */
     private void switchWithParentChildren(RegexNode first, RegexNode last){
 	RegexNode child=first.nextSibling;
-	if (child!=last & first.parentNodeEndIndex>child.parentNodeStartIndex) {
+	if (child!=last & first.getParentEndIndex()>child.getParentStartIndex()) {
 	    throw new IllegalArgumentException(String.format("\n###New node:%s \n###Existing structure:%s\nAttempt by %d# to replace end of label %d#\n",
 							     toString(),first.parentNode.toString(),identification,first.identification));
 	}
 	RegexNode target=first;
 	while (child != last) { // last child is not a valid child
-	    if (child.parentNodeEndIndex > parentNodeEndIndex) {
+	    if (child.getParentEndIndex() > parentNodeEndIndex) {
 		throw new IllegalArgumentException(String.format("\n###New node:%s \n###Existing structure:%s\nAttempt by %d# to replace start of label %d#\n",
 								 toString(),first.parentNode.toString(),identification, child.identification));
 	    } else {
@@ -4401,6 +7104,7 @@ public final class RegexNode {
 		RegexNode nextChild=child.nextSibling;    // point to next valid element in (parent) chain
 		child.unlink();                             // detach child from original sibling chain 
 		child.parentNode=this;
+		chain();
 		lastChild.prependChain(child);
 		child=nextChild;
 	    }
@@ -4420,9 +7124,10 @@ public final class RegexNode {
     private RegexNode switchWithChildren(){ // exports indexes from parents children , returns last node in chain
 	RegexNode sibling=this.nextSibling;
 	RegexNode child=firstChild.nextSibling;
+	int offset=getParentStartIndex();
 	while (child != lastChild) { // last child is not a valid child
-	    child.parentNodeStartIndex=child.parentNodeStartIndex+parentNodeStartIndex;
-	    child.parentNodeEndIndex=child.parentNodeEndIndex+parentNodeStartIndex;
+	    child.parentNodeStartIndex=child.parentNodeStartIndex+offset;
+	    child.parentNodeEndIndex=child.parentNodeEndIndex+offset;
 	    RegexNode nextChild=child.nextSibling;
 	    child.unlink();
 	    child.parentNode=this.parentNode;
@@ -4448,6 +7153,7 @@ public final class RegexNode {
     private RegexNode createNode(int startIndex, int endIndex,String nodeName) {
 	RegexNode child=new RegexNode(this, startIndex, endIndex);
 	child.setNodeName(nodeName);
+	chain();
 	RegexNode first=getChildBefore(startIndex);
 	RegexNode last=getChildAfter(endIndex);
 	child.switchWithParentChildren(first, last); // insert into sibling chain
@@ -4460,6 +7166,8 @@ public final class RegexNode {
      **/
     private void changeling(RegexNode pchild, RegexNode nchild) {
 	//System.out.format("Change: %d %d\n",pchild.identification,nchild.identification);
+	pchild.indexUnlink();
+	nchild.indexUnlink();
 	RegexNode buff=nchild.nextSibling;
 	if (pchild.nextSibling == nchild) { // neighbours
 	    nchild.setNext(pchild);
@@ -4478,6 +7186,13 @@ public final class RegexNode {
 	nchild.prevSibling.setNext(nchild);
 	pchild.nextSibling.setPrev(pchild);
 	pchild.prevSibling.setNext(pchild);
+	if (pchild.prevSibling == nchild) {
+	    nchild.indexLink();
+	    pchild.indexLink();
+	} else {
+	    pchild.indexLink();
+	    nchild.indexLink();
+	}
 	//System.out.format("Done: %d %d\n",pchild.identification,nchild.identification);
     }
     /**
@@ -4507,15 +7222,19 @@ public final class RegexNode {
       */
     private String swap_(String resultSubstring,int startIndex,int endIndex) {      // swap current match in resultText with resultSubstring
 	//System.out.format("Swapping:%d %d %d %s -> ",startIndex,endIndex,resultText.length(),resultText);
-	String resultBuffer=resultText.substring(startIndex,endIndex);
-	resultText.replace(startIndex,endIndex,resultSubstring);    // Update resultText
+	String resultBuffer=textSubstring(startIndex,endIndex);
+	result().replace(startIndex,endIndex,resultSubstring);    // Update resultText
+	trimResult();
+	textChanged(resultSubstring);
 	return resultBuffer;
     }
     private String swap_(Plan plan) {      // swap current match in resultText with resultSubstring
 	//System.out.format("Swapping:%s\n%s\n%s\n",plan.toString(),toString(),resultText);
 	Shift bound=plan.getBound();
-	String resultBuffer=resultText.substring(bound.getStartIndex(),bound.getEndIndex());
-	resultText.replace(bound.getStartIndex(),bound.getEndIndex(),plan.getText());
+	String resultBuffer=textSubstring(bound.getStartIndex(),bound.getEndIndex());
+	result().replace(bound.getStartIndex(),bound.getEndIndex(),plan.getText());
+	trimResult();
+	textChanged(plan.getText());
 	return resultBuffer;
     }
     private Plan planReplacement(String replacementText) {
@@ -4539,74 +7258,38 @@ public final class RegexNode {
 	Integer endShift   = matchEnd;
 	int cnt=0;
 	StringBuilder resultSubstring=new StringBuilder();
-	// Process substitution string to replace group references with groups
-	int cursor = 0; // position in replacementText
-	while (cursor < replacementText.length()) {
-	    char nextChar = replacementText.charAt(cursor);
-	    if (nextChar == '\\') {
-		cursor++;
-		nextChar = replacementText.charAt(cursor);
-		resultSubstring.append(nextChar);
-		cursor++;
-	    } else if (nextChar == '$') {
-		// Skip past $
-		cursor++;
-		if (cursor >=replacementText.length()) {
-		    throw new IllegalArgumentException(String.format("Illegal group reference in \"%s\"",replacementText));
-		}
-		// The first number is always a group
-		int refNum = (int)replacementText.charAt(cursor) - '0';
-		if ((refNum < 0)||(refNum > 9))
-		    throw new IllegalArgumentException("Illegal group reference");
-		cursor++;
-		// Capture the largest legal group string
-		boolean done = false;
-		while (!done) {
-		    if (cursor >= replacementText.length()) {
-			break;
-		    }
-		    int nextDigit = replacementText.charAt(cursor) - '0';
-		    if ((nextDigit < 0)||(nextDigit > 9)) { // not a number
-			break;
-		    }
-		    int newRefNum = (refNum * 10) + nextDigit;
-		    if (matcher.groupCount() < newRefNum) {
-			done = true;
-		    } else {
-			refNum = newRefNum;
-			cursor++;
-		    }
-		}
-		// Append group
-		Integer groupStart = start(refNum);
-		Integer groupEnd   = end(refNum);
-		if (groupStart != -1 && groupEnd != -1) {
-		    //System.out.format("\nAppending : %d %d \"%s\" \"%s\" %d %d  %s\n",groupStart,groupEnd,resultText,
-		    //		      matchGroups.get(refNum),identification,matchOffset,resultSubstring.toString());
-		    resultSubstring.append(resultText, groupStart, groupEnd);
-		    //System.out.format("Appended  : %d %d \"%s\" %d %s\n",groupStart,groupEnd,originalText,identification,toString());
-		    if (matchStart != -1 && matchEnd != -1) {
-			endShift=resultSubstring.length()-(groupEnd- matchStart);
-			startShift=endShift;
-			//System.out.format("Shifting %d m=(%d,%d) g=(%d,%d) s=(%d,%d)\n",
-			//		  refNum,matchStart,matchEnd,groupStart,groupEnd,startShift,endShift);
-			//if (matchStart==groupStart) { startShift=0;}; // change is within index
-			// shift any child Indexes...
-			// System.out.format("#####Index search: %d %d %d \"%s\"\n",matchStart,matchEnd,endShift,resultSubstring);
-			cnt=cnt+1;
-			plan.addShift(new Shift(refNum,groupStart,groupEnd,startOriginal(refNum),endOriginal(refNum),startShift,endShift)); // type=cut-and-paste
-		    }
-		} else  {
-		    System.out.format("No match/group available (%d), Only $0 allowed in replacementText \"%s\"\n\"%s\"\n",group,replacementText,toString());
-		    throw new IndexOutOfBoundsException("No group " + refNum);
+	// Replace the group references of the parsed replacement text with groups
+	Template template=context.patternCache.getTemplate(replacementText,matcher);
+	for (int ii=0;ii<template.refs.length;ii++) {
+	    resultSubstring.append(template.literals[ii]);
+	    int refNum=template.refs[ii];
+	    // Append group
+	    Integer groupStart = start(refNum);
+	    Integer groupEnd   = end(refNum);
+	    if (groupStart != -1 && groupEnd != -1) {
+		//System.out.format("\nAppending : %d %d \"%s\" \"%s\" %d %d  %s\n",groupStart,groupEnd,resultText,
+		//		      matchGroups.get(refNum),identification,matchOffset,resultSubstring.toString());
+		resultSubstring.append(text(), groupStart, groupEnd);
+		//System.out.format("Appended  : %d %d \"%s\" %d %s\n",groupStart,groupEnd,originalText,identification,toString());
+		if (matchStart != -1 && matchEnd != -1) {
+		    endShift=resultSubstring.length()-(groupEnd- matchStart);
+		    startShift=endShift;
+		    //System.out.format("Shifting %d m=(%d,%d) g=(%d,%d) s=(%d,%d)\n",
+		    //		  refNum,matchStart,matchEnd,groupStart,groupEnd,startShift,endShift);
+		    //if (matchStart==groupStart) { startShift=0;}; // change is within index
+		    // shift any child Indexes...
+		    // System.out.format("#####Index search: %d %d %d \"%s\"\n",matchStart,matchEnd,endShift,resultSubstring);
+		    cnt=cnt+1;
+		    plan.addShift(new Shift(refNum,groupStart,groupEnd,startOriginal(refNum),endOriginal(refNum),startShift,endShift)); // type=cut-and-paste
 		}
-		//System.out.format("Found group: m(%d %d) %d %d\n",matchStart,matchEnd,groupStart,groupEnd);
-	    } else {
-		resultSubstring.append(nextChar);
-		cursor++;
+	    } else  {
+		System.out.format("No match/group available (%d), Only $0 allowed in replacementText \"%s\"\n\"%s\"\n",group,replacementText,toString());
+		throw new IndexOutOfBoundsException("No group " + refNum);
 	    }
-	    
+	    //System.out.format("Found group: m(%d %d) %d %d\n",matchStart,matchEnd,groupStart,groupEnd);
 	}
+	resultSubstring.append(template.literals[template.refs.length]);
+	template.fail();
 	startShift=0;
 	endShift=resultSubstring.length()-(matchEnd-matchStart);
 	if (matchStart != -1 && matchEnd != -1) {
@@ -4646,13 +7329,164 @@ public final class RegexNode {
 	} else {
 	    plan.reset();
 	}
-	int startShift=0;
-	int endShift=0;
-	int cnt=0;
-	int group=0;
-	plan.setBound(new Shift(group,startIndex,endIndex,startIndexOriginal,endIndexOriginal,startShift,endShift));
-	plan.setText(resultText.substring(startIndex,endIndex));
-	return plan;
+	int startShift=0;
+	int endShift=0;
+	int cnt=0;
+	int group=0;
+	plan.setBound(new Shift(group,startIndex,endIndex,startIndexOriginal,endIndexOriginal,startShift,endShift));
+	plan.setText(textSubstring(startIndex,endIndex));
+	return plan;
+    }
+    /**
+     * A range of the characters of a String, used as originalText of a node whose text has
+     * not changed since it was hidden, so the characters are shared with the ancestor the
+     * range was taken from. The String is kept as long as any slice of it.
+     */
+    private static final class Slice implements CharSequence {
+	private final String base;
+	private final int offset;
+	private final int length;
+	Slice(String base, int offset, int length) {
+	    this.base=base;
+	    this.offset=offset;
+	    this.length=length;
+	}
+	public int length() {
+	    return length;
+	}
+	public char charAt(int index) {
+	    if (index < 0 || index >= length) throw new StringIndexOutOfBoundsException(index);
+	    return base.charAt(offset+index);
+	}
+	public CharSequence subSequence(int start, int end) {
+	    return slice(this,start,end);
+	}
+	String substring(int start, int end) {
+	    if (start < 0 || end > length || start > end) throw new StringIndexOutOfBoundsException(end);
+	    return base.substring(offset+start,offset+end);
+	}
+	void appendTo(StringBuilder out) {
+	    out.append(base,offset,offset+length);
+	}
+	public String toString() {
+	    return base.substring(offset,offset+length);
+	}
+    }
+    // the characters from start to end of a String or Slice, without copying them
+    private static CharSequence slice(CharSequence text, int start, int end) {
+	if (start < 0 || end > text.length() || start > end) throw new StringIndexOutOfBoundsException(end);
+	if (text instanceof Slice) {
+	    Slice slice=(Slice) text;
+	    return new Slice(slice.base,slice.offset+start,end-start);
+	}
+	if (start == 0 && end == text.length()) return text;
+	return new Slice((String) text,start,end-start);
+    }
+    /**
+      * Match data for the current match stored in a single primitive array.
+      * Each group occupies "stride" consecutive elements: the shifted start and end
+      * indexes (resultText), the original start and end indexes (originalText) and
+      * the start and end of the group text in "source". Group strings are only
+      * made when they are asked for, so a match costs no boxing or map entries.
+      */
+    private static final class MatchState {
+	private static final int stride=6;
+	private int[] index=new int[stride];
+	/**
+	 * text the group spans refer to (never changed once matched)
+	 */
+	private CharSequence source;
+	private void ensure(int group) {
+	    int len=(group+1)*stride;
+	    if (len > index.length) {
+		int[] buff=new int[Math.max(len,index.length*2)];
+		System.arraycopy(index,0,buff,0,index.length);
+		index=buff;
+	    }
+	}
+	int start(int group) {
+	    return index[group*stride];
+	}
+	int end(int group) {
+	    return index[group*stride+1];
+	}
+	int startOriginal(int group) {
+	    return index[group*stride+2];
+	}
+	int endOriginal(int group) {
+	    return index[group*stride+3];
+	}
+	void setShifted(int group, int startIndex, int endIndex) {
+	    ensure(group);
+	    index[group*stride]=startIndex;
+	    index[group*stride+1]=endIndex;
+	}
+	void setOriginal(int group, int startIndex, int endIndex) {
+	    ensure(group);
+	    index[group*stride+2]=startIndex;
+	    index[group*stride+3]=endIndex;
+	}
+	/**
+	 * Sets shifted and original indexes, the group text is taken from
+	 * the original indexes in "source".
+	 */
+	void set(int group, int startIndex, int endIndex, int startIndexOriginal, int endIndexOriginal) {
+	    ensure(group);
+	    int ii=group*stride;
+	    index[ii]=startIndex;
+	    index[ii+1]=endIndex;
+	    index[ii+2]=startIndexOriginal;
+	    index[ii+3]=endIndexOriginal;
+	    index[ii+4]=startIndexOriginal;
+	    index[ii+5]=endIndexOriginal;
+	}
+	void setSource(CharSequence source) {
+	    this.source=source;
+	}
+	void setSource(MatchState other) {
+	    this.source=other.source;
+	}
+	/**
+	 * Use the group text of another match for the given group.
+	 */
+	void setSource(int group, MatchState other, int otherGroup) {
+	    ensure(group);
+	    index[group*stride+4]=other.index[otherGroup*stride+4];
+	    index[group*stride+5]=other.index[otherGroup*stride+5];
+	}
+	/**
+	 * True if the group has a text in "source".
+	 */
+	boolean hasText(int group) {
+	    return source != null && index[group*stride+4] >= 0 && index[group*stride+5] >= 0;
+	}
+	/**
+	 * Sets where the text of the group is in "source".
+	 */
+	void setText(int group, int startIndex, int endIndex) {
+	    ensure(group);
+	    index[group*stride+4]=startIndex;
+	    index[group*stride+5]=endIndex;
+	}
+	/**
+	 * True if the text of the group is "text".
+	 */
+	boolean sameText(int group, CharSequence text) {
+	    int s=index[group*stride+4];
+	    int e=index[group*stride+5];
+	    return source != null && s >= 0 && e-s == text.length() && regionEquals(source,s,text,0,e-s);
+	}
+	String group(int group) {
+	    int s=index[group*stride+4];
+	    int e=index[group*stride+5];
+	    if (source == null || s < 0 || e < 0) return "";
+	    return source.subSequence(s,e).toString();
+	}
+	void copy(MatchState other, int groups) {
+	    source=other.source;
+	    ensure(Math.max(0,groups));
+	    System.arraycopy(other.index,0,index,0,Math.min(other.index.length,(groups+1)*stride));
+	}
     }
     private class Plan {
 	String resultText="";
@@ -4801,6 +7635,7 @@ public final class RegexNode {
 	int endMatch=bound.getEndIndex();
 	int startMatchShift=bound.getStartShift();
 	int endMatchShift=bound.getEndShift();
+	indexSettle();
 	parentNodeStartIndex=startMatch+startMatchShift;
 	parentNodeEndIndex=endMatch+endMatchShift;
 	//System.out.format("ShiftSTM: (%d %d) (%d+%d,%d+%d)\n", 
@@ -4808,6 +7643,7 @@ public final class RegexNode {
 	//		  startMatch,startMatchShift,endMatch,endMatchShift);
     }
     private void shiftSiblingChainIndexes(Plan plan) { // shift children according to plan
+	if (this == emptyFirst) return; // no children
 	Shift[] shifts=plan.getShift();
 	Shift bound=plan.getBound();
 	int startMatch=bound.getStartIndex();
@@ -4821,8 +7657,13 @@ public final class RegexNode {
 	} else {
 	    while(child != parentNode.lastChild) {
 	    RegexNode nextChild=child.nextSibling;    // point to next valid element in chain
-	    int startType=getType(child.parentNodeStartIndex,startMatch,endMatch);
-	    int endType=getType(child.parentNodeEndIndex,startMatch,endMatch);
+	    int startType=getType(child.getParentStartIndex(),startMatch,endMatch);
+	    int endType=getType(child.getParentEndIndex(),startMatch,endMatch);
+	    if (startType == after) {
+		// the chain is sorted, so the rest of the siblings are after the match
+		child.indexShiftFrom(endMatchShift);
+		break;
+	    }
 	    //System.out.format("shiftSiblingChainIndexes Shifting %d-siblings, Id=%d  S=%s  E=%s %s\n",
 	    //			   this.identification,child.identification,
 	    //			   getTypeString(startType),getTypeString(endType),
@@ -4890,8 +7731,7 @@ public final class RegexNode {
 								      child.identification,startMatch,endMatch,parentNode.toString(),plan.toString()));
 		    }
 		} else if (startType == atBoth ||
-			   startType == atEnd || 
-			   startType == after) {
+			   startType == atEnd) {
 		    // after match, shift start/end-indexes by endMatchShift...
 		    //System.out.format("shiftSiblingChainIndexes After-shift:pos=(%d,%d)  shift=%d",
 		    //		      child.parentNodeStartIndex,child.parentNodeEndIndex,
@@ -4921,11 +7761,9 @@ public final class RegexNode {
 	int endMatchShift=bound.getEndShift();
 	int groupMatch=bound.getGroup();
 	if (startMatch ==-1 & endMatch==-1) {
-	    matchStartIndexShifted.put(groupMatch,startMatch);
-	    matchEndIndexShifted.put(groupMatch,endMatch);
+	    match.setShifted(groupMatch,startMatch,endMatch);
 	} else {
-	    matchStartIndexShifted.put(groupMatch,startMatch+startMatchShift);
-	    matchEndIndexShifted.put(groupMatch,endMatch+endMatchShift);
+	    match.setShifted(groupMatch,startMatch+startMatchShift,endMatch+endMatchShift);
 	}
 	//System.out.format("Bound:%s %d\n",bound.toString(),nMatchGroups);
 	if (nMatchGroups > 0) {
@@ -4946,15 +7784,11 @@ public final class RegexNode {
 	    // find out if each group is shifted more than once...
 	    if (! found[group]) {
 		if (startGroup==-1 & endGroup==-1) {
-		    matchStartIndexShifted.put(group,startGroup);
-		    matchEndIndexShifted.put(group,endGroup);
-		    matchStartIndexOriginal.put(group,startGroup);
-		    matchEndIndexOriginal.put(group,endGroup);
+		    match.setShifted(group,startGroup,endGroup);
+		    match.setOriginal(group,startGroup,endGroup);
 		} else {
-		    matchStartIndexShifted.put(group,startGroup+startShift);
-		    matchEndIndexShifted.put(group,endGroup+endShift);
-		    matchStartIndexOriginal.put(group,startGroup);
-		    matchEndIndexOriginal.put(group,endGroup);
+		    match.setShifted(group,startGroup+startShift,endGroup+endShift);
+		    match.setOriginal(group,startGroup,endGroup);
 		}
 		found[group]=true;
 	    }
@@ -4963,12 +7797,11 @@ public final class RegexNode {
 	for (Integer ii=0;ii<=nMatchGroups;ii++) {
 	    if (!found[ii]) {
 		if (start(ii)==startMatch & end(ii)==endMatch) {
-		    matchEndIndexShifted.put(ii,end(ii)+endMatchShift);
+		    match.setShifted(ii,start(ii),end(ii)+endMatchShift);
 		    //System.out.format("=========== All \n%s\n",toString());
 		} else {
 		    if (start(ii) >= endMatch & end(ii) >= endMatch) {
-			matchStartIndexShifted.put(ii,start(ii)+endMatchShift);
-			matchEndIndexShifted.put(ii,end(ii)+endMatchShift);
+			match.setShifted(ii,start(ii)+endMatchShift,end(ii)+endMatchShift);
 		    } else if (start(ii) > startMatch & end(ii) < endMatch) {
 			nMatchGroups=-1;
 		    } 
@@ -4988,17 +7821,10 @@ public final class RegexNode {
     private void copyParentMatch(int startIndex, int endIndex) {
 	nMatchGroups=0;
 	if (startIndex==-1 & endIndex==-1) {
-	    matchStartIndexShifted.put(0,startIndex);
-	    matchEndIndexShifted.put(0,endIndex);
-	    matchStartIndexOriginal.put(0,startIndex);
-	    matchEndIndexOriginal.put(0,endIndex);
-	    matchGroups.put(0,"");
+	    match.set(0,startIndex,endIndex,startIndex,endIndex);
 	} else {
-	    matchStartIndexShifted.put(0,0);
-	    matchEndIndexShifted.put(0,endIndex-startIndex);
-	    matchStartIndexOriginal.put(0,0);
-	    matchEndIndexOriginal.put(0,endIndex-startIndex);
-	    matchGroups.put(0,getText());
+	    match.setSource(originalText);
+	    match.set(0,0,endIndex-startIndex,0,endIndex-startIndex);
 	}
     }
     /**
@@ -5014,23 +7840,22 @@ public final class RegexNode {
       *        only copy specified group data (0=all).
       */
     private void deleteMatchRange(int group) {
-	int startIndex=matchStartIndexOriginal.get(group);
-	int endIndex=matchEndIndexOriginal.get(group);
+	int startIndex=match.startOriginal(group);
+	int endIndex=match.endOriginal(group);
 	deleteMatchRange(startIndex,endIndex);
     };
     private void deleteMatchRange(int startIndex, int endIndex) {
 	//if (debug) 
 	System.out.format("Deleting range: %s %d->%d\n",getIdentification(),startIndex,endIndex);
 	for (Integer ii=0;ii<=nMatchGroups;ii++) {
-	    if (startIndex <= matchStartIndexShifted.get(ii) &&
-		endIndex >= matchEndIndexShifted.get(ii)) {
+	    if (startIndex <= match.start(ii) &&
+		endIndex >= match.end(ii)) {
 		deleteMatch(ii);
 	    };
 	};
     };
     private void deleteMatch(int group) {
-	matchStartIndexShifted.put(group,null);
-	matchEndIndexShifted.put(group,null);
+	match.setShifted(group,-1,-1);
     };
     private void copyParentMatch(int group) {
 	copyParentMatch(group, parentNode.start(group), parentNode.end(group));
@@ -5039,39 +7864,27 @@ public final class RegexNode {
 	if (! parentNode.matchResultChanged) {
 	    if (group==0) {
 		nMatchGroups=parentNode.nMatchGroups;
-		for (Integer ii=0;ii<=nMatchGroups;ii++) {
+		match.setSource(parentNode.match);
+		for (int ii=0;ii<=nMatchGroups;ii++) {
 		    int s=parentNode.start(ii);
 		    int e=parentNode.end(ii);
 		    if (s==-1 & e==-1) {
-			matchStartIndexShifted.put(ii,parentNode.start(ii));
-			matchEndIndexShifted.put(ii,parentNode.end(ii));
-			matchStartIndexOriginal.put(ii,parentNode.start(ii));
-			matchEndIndexOriginal.put(ii,parentNode.end(ii));
-			matchGroups.put(ii,"");
+			match.set(ii,s,e,s,e);
 		    } else {
-			matchStartIndexShifted.put(ii,parentNode.start(ii)-startIndex);
-			matchEndIndexShifted.put(ii,parentNode.end(ii)-startIndex);
-			matchStartIndexOriginal.put(ii,parentNode.start(ii)-startIndex);
-			matchEndIndexOriginal.put(ii,parentNode.end(ii)-startIndex);
-			matchGroups.put(ii,parentNode.matchGroups.get(ii));
+			match.set(ii,s-startIndex,e-startIndex,s-startIndex,e-startIndex);
+			match.setSource(ii,parentNode.match,ii);
 		    }
 		}
 	    } else {
 		nMatchGroups=0;
+		match.setSource(parentNode.match);
 		int s=parentNode.start(group);
 		int e=parentNode.end(group);
 		if (s==-1 & e==-1) {
-		    matchStartIndexShifted.put(0,parentNode.start(group));
-		    matchEndIndexShifted.put(0,parentNode.end(group));
-		    matchStartIndexOriginal.put(0,parentNode.start(group));
-		    matchEndIndexOriginal.put(0,parentNode.end(group));
-		    matchGroups.put(0,"");
+		    match.set(0,s,e,s,e);
 		} else {
-		    matchStartIndexShifted.put(0,parentNode.start(group)-startIndex);
-		    matchEndIndexShifted.put(0,parentNode.end(group)-startIndex);
-		    matchStartIndexOriginal.put(0,parentNode.start(group)-startIndex);
-		    matchEndIndexOriginal.put(0,parentNode.end(group)-startIndex);
-		    matchGroups.put(0,parentNode.matchGroups.get(group));
+		    match.set(0,s-startIndex,e-startIndex,s-startIndex,e-startIndex);
+		    match.setSource(0,parentNode.match,group);
 		}
 	    }
 	}
@@ -5103,9 +7916,12 @@ public final class RegexNode {
     }
     
     private RegexNode ignoreAll_(RegexNode root, Pattern pattern,Character split) { // ignored nodes are not "un-hidden" by "unhide"
+	return ignoreAll_(root,pattern,split,markNamed(pattern,split));
+    }
+    private RegexNode ignoreAll_(RegexNode root, Pattern pattern,Character split, int mark) {
 	RegexNode child=firstChild.nextSibling;
 	while(child != lastChild) {
-	    child.ignoreAll_(root,pattern,split);
+	    if (mark == 0 || child.nameMark == mark) child.ignoreAll_(root,pattern,split,mark);
 	    child=child.nextSibling;    // point to next valid element in chain
 	}
 	if (parentNode != null & nodeMatch(root,pattern,split) != null) {
@@ -5186,9 +8002,9 @@ private String getTypeString(int type) {
       * @param  OriginalText
       *         The text that we want to search and process.
       */
-    private void init(String originalText) {
+    private void init(CharSequence originalText) {
 	initSiblingChain();
-	useOriginalString(originalText);
+	useOriginalText(originalText);
     }
 
     /**
@@ -5196,8 +8012,32 @@ private String getTypeString(int type) {
       */
     private void initSiblingChain() {
 	// set identification
-	identification=++maxidentification;
-	// set sibling chain
+	identification=++context.maxidentification;
+	if (context.created != null) context.created.add(this);
+	// forget any old children
+	if (firstChild != null) {
+	    indexFlush(childIndex);
+	    RegexNode child=firstChild.nextSibling;
+	    while (child != null & child != lastChild) {
+		child.indexOwner=null;
+		child.indexLeft=null;
+		child.indexRight=null;
+		child.indexUp=null;
+		child.indexSize=0;
+		child=child.nextSibling;
+	    }
+	}
+	childIndex=null;
+	// no children yet
+	this.firstChild=emptyFirst;
+	this.lastChild=emptyLast;
+    }
+    /**
+      * Gives this node a sibling chain of its own, before a child is added.
+      * Nodes without children share emptyFirst and emptyLast, which are never changed.
+      */
+    private void chain() {
+	if (firstChild != emptyFirst) return;
 	this.firstChild=new RegexNode(this,-1,-1);
 	this.lastChild=new RegexNode(this,-1,-1);
 	this.firstChild.setNext(this.lastChild);
@@ -5210,29 +8050,93 @@ private String getTypeString(int type) {
       *         The text that we want to search and process.
       */
     public void useOriginalString(String originalText) {
+	useOriginalText(originalText);
+    }
+    private void useOriginalText(CharSequence originalText) {
 	if (originalText==null) {
 	    System.out.format("Attempt to use NULL as original string.\n");
 	    originalText="";
 	}
-	String old=null;
-	if (this.originalText != null) {
-	    old=this.originalText.toString();
-	}
 	//removeChildren();
-	if (! originalText.equals(old)) {
+	if (this.originalText == null || ! sameChars(originalText,this.originalText)) {
 	    //System.out.format(":::::::::::::::::::Resetting original text\n");
-	    this.originalText=new StringBuffer(originalText);
-	    this.resultText=new StringBuilder(originalText);
-	    matchStartIndexShifted.put(0,0);
-	    matchEndIndexShifted.put(0,originalText.length());
-	    matchStartIndexOriginal.put(0,0);
-	    matchEndIndexOriginal.put(0,originalText.length());
-	    matchGroups.put(0,originalText);
+	    this.originalText=originalText;
+	    this.resultText=null; // made when the text is first changed
+	    textReset();
+	    if (match == null) match=new MatchState();
+	    match.setSource(this.originalText);
+	    match.set(0,0,originalText.length(),0,originalText.length());
+	    nMatchGroups=-1;
+	}
+	matchOffset=0;
+	matchPos=0;
+    }
+    /**
+      * Sets originalText to the text of the node for a new search, as useOriginalString(getText()),
+      * but the text is only copied when it has changed, and resultText is kept.
+      */
+    private void syncOriginal() {
+	if (! textClean && ! sameText()) {
+	    this.originalText=resultText.toString();
+	    if (match == null) match=new MatchState();
+	    match.setSource(this.originalText);
+	    match.set(0,0,originalText.length(),0,originalText.length());
 	    nMatchGroups=-1;
+	    textMasked=false; // drop the characters that were removed
 	}
+	textSynced();
 	matchOffset=0;
 	matchPos=0;
     }
+    private boolean sameText() {
+	if (resultText == null) return true; // not changed since originalText was set
+	return originalText != null && sameChars(originalText,resultText);
+    }
+    private static boolean sameChars(CharSequence a, CharSequence b) {
+	return a.length() == b.length() && regionEquals(a,0,b,0,b.length());
+    }
+    // true if "len" characters from "aStart" in "a" are the same as from "bStart" in "b"
+    private static boolean regionEquals(CharSequence a, int aStart, CharSequence b, int bStart, int len) {
+	if (aStart < 0 || bStart < 0 || aStart+len > a.length() || bStart+len > b.length()) return false;
+	for (int ii=0;ii<len;ii++) {
+	    if (a.charAt(aStart+ii) != b.charAt(bStart+ii)) return false;
+	}
+	return true;
+    }
+    // the text of the node: resultText, or originalText until the text is first changed
+    private CharSequence text() {
+	return (resultText != null ? resultText : originalText);
+    }
+    private String textSubstring(int startIndex, int endIndex) {
+	if (resultText != null) return resultText.substring(startIndex,endIndex);
+	return (originalText instanceof Slice ? ((Slice) originalText).substring(startIndex,endIndex)
+		: ((String) originalText).substring(startIndex,endIndex));
+    }
+    /**
+      * The text from startIndex to endIndex for a child node. While the range is the same as
+      * in originalText, from originalStartIndex when that is not -1, it is a Slice of originalText
+      * and no characters are copied. Otherwise the range is copied from resultText.
+      */
+    private CharSequence textSlice(int startIndex, int endIndex, int originalStartIndex) {
+	if (resultText == null) return slice(originalText,startIndex,endIndex);
+	int len=endIndex-startIndex;
+	if (originalStartIndex != -1 && regionEquals(originalText,originalStartIndex,resultText,startIndex,len)) {
+	    return slice(originalText,originalStartIndex,originalStartIndex+len);
+	}
+	return resultText.substring(startIndex,endIndex);
+    }
+    // hiding shrinks resultText but not its capacity: drop the spare capacity once it is more than half
+    private void trimResult() {
+	if (resultText.capacity() > 2*resultText.length()+64) resultText.trimToSize();
+    }
+    // resultText for a change, copied from originalText the first time
+    private StringBuilder result() {
+	if (resultText == null) {
+	    resultText=new StringBuilder(originalText.length()+16);
+	    if (originalText instanceof Slice) ((Slice) originalText).appendTo(resultText); else resultText.append((String) originalText);
+	}
+	return resultText;
+    }
 
     /**
       * Public method to remove all children from the sibling chain.
@@ -5264,6 +8168,10 @@ private String getTypeString(int type) {
 	    child.setNext(nextSibling);
 	};
 	nextSibling=child;
+	child.indexLink();
+	child.contextLink();
+	child.maskLink();
+	child.nameIndexLink();
     }
     /**
       * Private method to add node to sibling chain of this node
@@ -5286,10 +8194,15 @@ private String getTypeString(int type) {
 	    child.setNext(this);
 	};
 	prevSibling=child;
+	child.indexLink();
+	child.contextLink();
+	child.maskLink();
+	child.nameIndexLink();
     }
 
     /**
-      * Private method to bubble-sort node down in sibling chain.
+      * Private method to sort node down in sibling chain.
+      * The siblings between "child" and this node must already be sorted.
       *
       * @param child
       *        first child that node should NOT be sorted below.
@@ -5297,13 +8210,21 @@ private String getTypeString(int type) {
     private void positionAfter(RegexNode child) { // add child to sibling chain before this node
 	RegexNode first=parentNode.firstChild;
 	boolean bdone=(prevSibling == first || prevSibling == child ||
-		       parentNodeStartIndex >= prevSibling.parentNodeStartIndex);
+		       getParentStartIndex() >= prevSibling.getParentStartIndex());
+	if (bdone) return;
+	if (indexOwner != null && (child == first || child.indexOwner == indexOwner)) {
+	    int low=(child == first ? -1 : indexRank(child));
+	    RegexNode next=parentNode.getChildFrom(parentNodeStartIndex+1,low,indexRank(this));
+	    unlink();
+	    next.prependChain(this);
+	    return;
+	}
 	while (! bdone) {
 	    RegexNode buffChild=prevSibling;
 	    buffChild.unlink();           // remove from sibling chain
 	    appendChain(buffChild); // add to chain after child
 	    bdone=(prevSibling == first || prevSibling == child ||
-		   parentNodeStartIndex >= prevSibling.parentNodeStartIndex);
+		   getParentStartIndex() >= prevSibling.getParentStartIndex());
 	}
     }
     /**
@@ -5346,6 +8267,8 @@ private String getTypeString(int type) {
       * unlink this node from its sibling chain.
       */
     private void unlink() { // unlink this node from sibling chain
+	context.nodeEpoch++;
+	indexUnlink();
 	if (prevSibling != null) {
 	    prevSibling.setNext(nextSibling);
 	};
@@ -5355,6 +8278,414 @@ private String getTypeString(int type) {
 	prevSibling=null;
 	nextSibling=null;
     }
+    //
+    //******************** C H I L D   I N D E X ******************
+    //
+    /**
+      * Adds this node to the child index of its parent, at the position
+      * given by its place in the sibling chain (just after prevSibling).
+      */
+    private void indexLink() {
+	if (parentNode == null || prevSibling == null || identification == -99) return;
+	if (indexOwner != null) indexUnlink();
+	RegexNode owner=parentNode;
+	int pos=0;
+	if (prevSibling != owner.firstChild) {
+	    if (prevSibling.indexOwner != owner) return; // chain is being rebuilt
+	    pos=indexRank(prevSibling)+1;
+	}
+	indexSize=1;
+	RegexNode[] parts=new RegexNode[2];
+	indexSplit(owner.childIndex,pos,parts);
+	owner.childIndex=indexRoot(indexMerge(indexMerge(parts[0],this),parts[1]));
+	indexOwner=owner;
+    }
+    /**
+      * Builds the child index of all children in the sibling chain at once, in linear time.
+      * The treap is the same as the one indexLink makes one child at a time, as the
+      * priorities are fixed (see binaryRead_).
+      */
+    private void indexBuild() {
+	RegexNode[] stack=new RegexNode[16]; // right spine of the treap so far
+	int top=0;
+	RegexNode child=firstChild.nextSibling;
+	while (child != lastChild) {
+	    RegexNode left=null;
+	    while (top > 0 && indexPriority(stack[top-1]) < indexPriority(child)) left=stack[--top];
+	    child.indexOwner=this;
+	    child.indexLeft=left;
+	    child.indexRight=null;
+	    child.indexShift=0;
+	    if (top > 0) stack[top-1].indexRight=child;
+	    if (top == stack.length) stack=Arrays.copyOf(stack,2*top);
+	    stack[top++]=child;
+	    child=child.nextSibling;
+	}
+	childIndex=(top > 0 ? indexRoot(indexSizes(stack[0])) : null);
+    }
+    private static RegexNode indexSizes(RegexNode t) { // sizes and up links, from the bottom
+	if (t.indexLeft != null) indexSizes(t.indexLeft);
+	if (t.indexRight != null) indexSizes(t.indexRight);
+	indexUpdate(t);
+	return t;
+    }
+    /**
+      * Removes this node from the child index it belongs to.
+      */
+    private void indexUnlink() {
+	RegexNode owner=indexOwner;
+	if (owner == null) return;
+	RegexNode[] parts=new RegexNode[2];
+	RegexNode[] rest=new RegexNode[2];
+	indexSplit(owner.childIndex,indexRank(this),parts);
+	indexSplit(parts[1],1,rest);
+	owner.childIndex=indexRoot(indexMerge(parts[0],rest[1]));
+	indexOwner=null;
+	indexLeft=null;
+	indexRight=null;
+	indexUp=null;
+	indexSize=0;
+	indexShift=0;
+    }
+    /**
+      * Shifts the parent indexes of this node and all later siblings by "shift".
+      * The shift is only recorded at the top of the index and pushed down
+      * when the nodes are visited.
+      */
+    private void indexShiftFrom(int shift) {
+	RegexNode owner=indexOwner;
+	if (shift == 0) return;
+	if (owner == null) { // not indexed, shift the chain one by one
+	    RegexNode child=this;
+	    while (child != parentNode.lastChild) {
+		child.parentNodeStartIndex=child.parentNodeStartIndex+shift;
+		child.parentNodeEndIndex=child.parentNodeEndIndex+shift;
+		child=child.nextSibling;
+	    }
+	    return;
+	}
+	RegexNode[] parts=new RegexNode[2];
+	indexSplit(owner.childIndex,indexRank(this),parts);
+	parts[1].indexShift=parts[1].indexShift+shift;
+	owner.childIndex=indexRoot(indexMerge(parts[0],parts[1]));
+    }
+    /**
+      * Brings the parent indexes of this node up to date by pushing
+      * pending shifts down from the top of the child index.
+      */
+    private void indexSettle() {
+	if (indexUp != null) indexUp.indexSettle();
+	indexPush(this);
+    }
+    private static void indexPush(RegexNode t) {
+	int shift=t.indexShift;
+	if (shift != 0) {
+	    t.parentNodeStartIndex=t.parentNodeStartIndex+shift;
+	    t.parentNodeEndIndex=t.parentNodeEndIndex+shift;
+	    if (t.indexLeft != null) t.indexLeft.indexShift=t.indexLeft.indexShift+shift;
+	    if (t.indexRight != null) t.indexRight.indexShift=t.indexRight.indexShift+shift;
+	    t.indexShift=0;
+	}
+    }
+    private static void indexFlush(RegexNode t) { // push all pending shifts
+	if (t != null) {
+	    indexPush(t);
+	    indexFlush(t.indexLeft);
+	    indexFlush(t.indexRight);
+	}
+    }
+    private static int indexSize(RegexNode t) {
+	return (t == null ? 0 : t.indexSize);
+    }
+    private static int indexPriority(RegexNode t) { // fixed pseudo-random priority
+	int h=t.identification;
+	h ^= h >>> 16;
+	h *= 0x85ebca6b;
+	h ^= h >>> 13;
+	h *= 0xc2b2ae35;
+	h ^= h >>> 16;
+	return h;
+    }
+    private static RegexNode indexRoot(RegexNode t) {
+	if (t != null) t.indexUp=null;
+	return t;
+    }
+    private static void indexUpdate(RegexNode t) {
+	t.indexSize=1+indexSize(t.indexLeft)+indexSize(t.indexRight);
+	if (t.indexLeft != null) t.indexLeft.indexUp=t;
+	if (t.indexRight != null) t.indexRight.indexUp=t;
+    }
+    private static int indexRank(RegexNode t) { // position of node in sibling chain
+	int rank=indexSize(t.indexLeft);
+	while (t.indexUp != null) {
+	    if (t.indexUp.indexRight == t) {
+		rank=rank+indexSize(t.indexUp.indexLeft)+1;
+	    }
+	    t=t.indexUp;
+	}
+	return rank;
+    }
+    private static RegexNode indexMerge(RegexNode a, RegexNode b) {
+	if (a == null) return b;
+	if (b == null) return a;
+	indexPush(a);
+	indexPush(b);
+	if (indexPriority(a) > indexPriority(b)) {
+	    a.indexRight=indexMerge(a.indexRight,b);
+	    indexUpdate(a);
+	    return a;
+	} else {
+	    b.indexLeft=indexMerge(a,b.indexLeft);
+	    indexUpdate(b);
+	    return b;
+	}
+    }
+    /**
+      * Splits tree so that the first "pos" nodes end up in parts[0] and the rest in parts[1].
+      */
+    private static void indexSplit(RegexNode t, int pos, RegexNode[] parts) {
+	if (t == null) {
+	    parts[0]=null;
+	    parts[1]=null;
+	    return;
+	}
+	indexPush(t);
+	if (indexSize(t.indexLeft) < pos) {
+	    indexSplit(t.indexRight,pos-indexSize(t.indexLeft)-1,parts);
+	    t.indexRight=parts[0];
+	    indexUpdate(t);
+	    parts[0]=indexRoot(t);
+	} else {
+	    indexSplit(t.indexLeft,pos,parts);
+	    t.indexLeft=parts[1];
+	    indexUpdate(t);
+	    parts[1]=indexRoot(t);
+	}
+    }
+    //
+    //******************** T E X T   M A S K ******************
+    //
+    private static final int maskWords=4;
+    /**
+      * Bit of a character in a character mask (maskWords longs). Characters below 256,
+      * ASCII and the anchors (128 and up) alike, have their own bit; all other characters
+      * share bit 0.
+      */
+    private static int charBit(char c) {
+	return (c < 64*maskWords ? c : 0);
+    }
+    private static void maskAdd(long[] mask, char c) {
+	int bit=charBit(c);
+	mask[bit>>>6]|=1L<<bit;
+    }
+    private static void maskOr(long[] mask, long[] other) {
+	for (int ii=0;ii<maskWords;ii++) mask[ii]|=other[ii];
+    }
+    // true if mask has all the bits of required
+    private static boolean maskHas(long[] mask, long[] required) {
+	for (int ii=0;ii<maskWords;ii++) {
+	    if ((mask[ii] & required[ii]) != required[ii]) return false;
+	}
+	return true;
+    }
+    private static boolean maskEmpty(long[] mask) {
+	for (int ii=0;ii<maskWords;ii++) {
+	    if (mask[ii] != 0) return false;
+	}
+	return true;
+    }
+    // resultText changed in swap_: add the new characters (removed ones stay in the mask)
+    private void textChanged(CharSequence text) {
+	if (textMasked) {
+	    for (int ii=0;ii<text.length();ii++) maskAdd(textBits,text.charAt(ii));
+	}
+	textClean=false;
+	maskStale();
+    }
+    // resultText made again from originalText
+    private void textReset() {
+	textMasked=false;
+	textClean=true;
+	maskStale();
+    }
+    // originalText was set to resultText
+    private void textSynced() {
+	if (! textClean) {
+	    textClean=true;
+	    maskStale();
+	}
+    }
+    private void textMask() {
+	if (textBits == null) textBits=new long[maskWords]; else Arrays.fill(textBits,0);
+	CharSequence text=text();
+	for (int ii=0;ii<text.length();ii++) maskAdd(textBits,text.charAt(ii));
+	textMasked=true;
+    }
+    // the seek of this node has ended
+    private void seekDone() {
+	if (oldPatternString != null) {
+	    oldPatternString=null;
+	    maskStale();
+	}
+    }
+    /**
+      * The summary of the nodes below changed, so the summaries of this node and
+      * the nodes above are made again when needed. A node without a summary never
+      * has a parent with one, so this stops at the first node without one.
+      */
+    private void maskStale() {
+	RegexNode node=this;
+	while (node != null && node.subMasked) {
+	    node.subMasked=false;
+	    node=node.parentNode;
+	}
+    }
+    // this node was put in a sibling chain
+    private void maskLink() {
+	if (parentNode != null) parentNode.maskStale();
+    }
+    private void subMask() {
+	if (! textMasked) textMask();
+	if (subBits == null) subBits=new long[maskWords];
+	System.arraycopy(textBits,0,subBits,0,maskWords);
+	boolean clean=textClean && oldPatternString == null;
+	RegexNode child=firstChild.nextSibling;
+	while (child != lastChild) {
+	    if (! child.subMasked) child.subMask();
+	    maskOr(subBits,child.subBits);
+	    clean=clean && child.subClean;
+	    child=child.nextSibling;
+	}
+	subClean=clean;
+	subMasked=true;
+    }
+    /**
+      * @return false if the text of this node lacks a character that is required
+      *         (see Required).
+      */
+    private boolean textMay(long[] required) {
+	if (maskEmpty(required)) return true;
+	if (! textMasked) textMask();
+	return maskHas(textBits,required);
+    }
+    /**
+      * @return false if no node from this node down can match, so that searching them
+      *         would only leave them as they are.
+      */
+    private boolean mayMatch(long[] required) {
+	if (maskEmpty(required)) return true;
+	if (! subMasked) subMask();
+	return ! subClean || maskHas(subBits,required);
+    }
+    //
+    //******************** N A M E   I N D E X ******************
+    //
+    /**
+      * Returns the symbol of a node name, adding it to the symbol table if needed.
+      */
+    private static int symbolOf(String name) {
+	Integer sym=symbolTable.get(name);
+	if (sym == null) sym=symbolTable.computeIfAbsent(name,key -> symbolNext.getAndIncrement());
+	return sym;
+    }
+    /**
+      * Returns a bound on the symbols handed out so far.
+      */
+    private static int symbolCount() {
+	return symbolNext.get();
+    }
+    private RegexNode getTop() {
+	RegexNode top=this;
+	while (top.parentNode != null) top=top.parentNode;
+	return top;
+    }
+    /**
+      * Adds this node to the name index of its tree (if the tree has one).
+      */
+    private void nameIndexAdd() {
+	if (context.nameAdded != null) { // part of a parallel traversal, done when joined
+	    context.nameAdded.add(this);
+	    return;
+	}
+	RegexNode top=getTop();
+	if (top.nameIndex == null) return;
+	ArrayList<RegexNode> list=top.nameIndex.get(symbol);
+	if (list == null) {
+	    list=new ArrayList<RegexNode>();
+	    top.nameIndex.put(symbol,list);
+	}
+	list.add(this);
+	nameIndexedBy=top;
+    }
+    /**
+      * Adds this node and the nodes below to the name index of the tree it has been linked into.
+      */
+    private void nameIndexLink() {
+	if (identification == -99) return;
+	if (context.nameLinked != null) { // part of a parallel traversal, done when joined
+	    context.nameLinked.add(this);
+	    return;
+	}
+	RegexNode top=getTop();
+	if (top.nameIndex != null && nameIndexedBy != top) nameIndexAll(top);
+    }
+    private void nameIndexAll(RegexNode top) {
+	if (nameIndexedBy != top) {
+	    ArrayList<RegexNode> list=top.nameIndex.get(symbol);
+	    if (list == null) {
+		list=new ArrayList<RegexNode>();
+		top.nameIndex.put(symbol,list);
+	    }
+	    list.add(this);
+	    nameIndexedBy=top;
+	}
+	RegexNode child=firstChild.nextSibling;
+	while (child != lastChild) {
+	    child.nameIndexAll(top);
+	    child=child.nextSibling;
+	}
+    }
+    /**
+      * Marks all nodes that are named by the last element of the node path, and the nodes above them,
+      * so that searches only need to go into marked nodes.
+      * The marks are reused until a node is renamed or moved.
+      *
+      * @return the mark, or 0 if the node path does not end with a node name.
+      */
+    private int markNamed(Pattern pattern, Character split) {
+	if (pattern == null || split == null) return 0;
+	NodeSelector selector=context.patternCache.getSelector(pattern,split);
+	if (selector == null || selector.kind.length == 0 || selector.kind[0] != NodeSelector.literal) return 0;
+	int sym=selector.symbol[0];
+	RegexNode top=getTop();
+	if (top.nameIndex == null) {
+	    top.nameIndex=new HashMap<Integer,ArrayList<RegexNode>>();
+	    top.nameIndexAll(top);
+	} else if (top.nameMarkGen != 0 && top.nameMarkSymbol == sym && top.nameMarkEpoch == context.nodeEpoch) {
+	    return top.nameMarkGen;
+	}
+	int gen=++context.nameMarks;
+	ArrayList<RegexNode> list=top.nameIndex.get(sym);
+	if (list != null) {
+	    int kept=0;
+	    for (RegexNode candidate : list) {
+		if (candidate.symbol != sym || candidate.nameIndexedBy != top || candidate.nameListed == gen) continue;
+		if (candidate.getTop() != top) continue; // removed from the tree
+		candidate.nameListed=gen;
+		RegexNode current=candidate;
+		while (current != null && current.nameMark != gen) {
+		    current.nameMark=gen;
+		    current=current.parentNode;
+		}
+		list.set(kept++,candidate);
+	    }
+	    list.subList(kept,list.size()).clear();
+	}
+	top.nameMarkSymbol=sym;
+	top.nameMarkEpoch=context.nodeEpoch;
+	top.nameMarkGen=gen;
+	return gen;
+    }
     /**
       * Hides the current match giving it a node. 
       * A replacement rule is applied to the hidden text based on the current match.
@@ -5377,8 +8708,9 @@ private String getTypeString(int type) {
 	};
 	if (group < 0 && s==e) return null; // empty groups are omitted if group-id is negative...
 	//System.out.format("\n\n%s\nHiding: %d group %d (%d %d)\n",toString(),identification,group,start(Math.abs(group)),end(Math.abs(group)));
-	RegexNode child=new RegexNode(this, s, e);
+	RegexNode child=new RegexNode(this, s, e, startOriginal(Math.abs(group)));
 	child.setNodeName(nodeName);
+	chain();
 	RegexNode first=getChildBefore(s);
 	RegexNode last=getChildAfter(e);
 	child.switchWithParentChildren(first, last); // copy match groups to new node
@@ -5403,11 +8735,16 @@ private String getTypeString(int type) {
       *        The last child node that should be hidden.
       */
     private RegexNode hide_(String nodeName, String label, RegexNode first, RegexNode last) { // hide from
-	int s=first.parentNodeEndIndex;
-	int e=last.parentNodeStartIndex;
+	int s=first.getParentEndIndex();
+	int e=last.getParentStartIndex();
 	if (s==-1) s=0; // if firstChild is used, hide from beginning
-	if (e==-1) e=resultText.length(); // if lastChild is used, hide until the end
+	if (e==-1) e=text().length(); // if lastChild is used, hide until the end
 	if (first.nextSibling==last && s>=e) return null; // nothing to hide...
+	if (first == emptyFirst) { // no children yet
+	    chain();
+	    first=firstChild;
+	    last=lastChild;
+	}
 	RegexNode child=new RegexNode(this, s, e);
 	child.setNodeName(nodeName);
 	child.switchWithParentChildren(first, last); // copy match groups to new node
@@ -5431,7 +8768,7 @@ private String getTypeString(int type) {
       *        The last child node that should be hidden.
       */
     private RegexNode hide_(String nodeName, String label, int startIndex, int endIndex, RegexNode child) { // hide current match 
-	if (endIndex==-1) endIndex=resultText.length(); // if lastChild is used, hide until the end
+	if (endIndex==-1) endIndex=text().length(); // if lastChild is used, hide until the end
 	if (startIndex==endIndex) return null; // nothing to hide...
 	if (child==null) {
 	    child=new RegexNode(this, startIndex, endIndex);
@@ -5440,9 +8777,10 @@ private String getTypeString(int type) {
 	    child.parentNode=this;
 	    child.parentNodeStartIndex=startIndex;
 	    child.parentNodeEndIndex=endIndex;
-	    child.useOriginalString(resultText.substring(startIndex,endIndex));
+	    child.useOriginalText(textSlice(startIndex,endIndex,-1));
 	}
 	child.setNodeName(nodeName);
+	chain();
 	RegexNode first=getChildBefore(startIndex);
 	RegexNode last=getChildAfter(endIndex);
 	child.switchWithParentChildren(first, last); // copy match groups to new node
@@ -5496,29 +8834,52 @@ private String getTypeString(int type) {
     }
     
     private RegexNode getChildBefore(int startIndex) {
-	RegexNode child=firstChild.nextSibling;
-	boolean found=false;
-	while (!found & child != lastChild) { // last child is not a valid child
-	    if (child.parentNodeStartIndex >= startIndex) {
-		found=true;
+	return getChildFrom(startIndex).prevSibling;
+    }
+
+    private RegexNode getChildAfter(int endIndex) {
+	return getChildFrom(endIndex);
+    }
+    /**
+      * Returns the first child starting at or after the given index, or lastChild.
+      * The sibling chain is sorted on parentNodeStartIndex, so the child index
+      * can be searched like a binary tree.
+      */
+    private RegexNode getChildFrom(int index) {
+	RegexNode found=lastChild;
+	RegexNode t=childIndex;
+	while (t != null) {
+	    indexPush(t);
+	    if (t.parentNodeStartIndex >= index) {
+		found=t;
+		t=t.indexLeft;
 	    } else {
-		child=child.nextSibling;
+		t=t.indexRight;
 	    }
 	}
-	return child.prevSibling;
+	return found;
     }
-
-    private RegexNode getChildAfter(int endIndex) {
-	RegexNode child=firstChild.nextSibling;
-	boolean found=false;
-	while (!found & child != lastChild) { // last child is not a valid child
-	    if (child.parentNodeStartIndex >= endIndex) {
-		found=true;
+    /**
+      * Returns the first child at a position above "low" that starts at or after
+      * the given index, or the child at position "high". Only the children between
+      * positions "low" and "high" need to be sorted.
+      */
+    private RegexNode getChildFrom(int index, int low, int high) {
+	RegexNode found=null;
+	RegexNode t=childIndex;
+	int base=0;
+	while (t != null) {
+	    indexPush(t);
+	    int rank=base+indexSize(t.indexLeft);
+	    if (rank >= high || (rank > low && t.parentNodeStartIndex >= index)) {
+		found=t;
+		t=t.indexLeft;
 	    } else {
-		child=child.nextSibling;
+		base=rank+1;
+		t=t.indexRight;
 	    }
 	}
-	return child;
+	return found;
     }
     /**
       * Hides all occurences of the specified pattern, giving them the same node name.
@@ -5551,13 +8912,18 @@ private String getTypeString(int type) {
       *        "$" indicates top of the node tree).
       */
     private boolean hideAny_(RegexNode root, int targetlevel, String node, String patternText, 
-			     String label,Pattern pattern, Character split) { // hide current match 
+			     String label, long[] required, Pattern pattern, Character split) { // hide current match 
+	if (targetlevel == 0 && ! mayMatch(required)) return false; // no node below can match
 	boolean hit=false;
 	RegexNode child=firstChild.nextSibling;
 	this.marked=false;
+	if (!ignored && parallel()) {
+	    hit=childrenAll(root,pattern,split,true,c -> c.hideAny_(root,targetlevel,node,patternText,label,required,pattern,split));
+	    child=lastChild;
+	}
 	while (child!= lastChild & !ignored) { // last child is not a valid child
 	    if (! child.ignored) {
-		if (child.hideAny_(root, targetlevel, node, patternText, label, pattern,split)) {
+		if (child.hideAny_(root, targetlevel, node, patternText, label, required, pattern,split)) {
 		    hit=true;
 		};
 	    };
@@ -5598,6 +8964,149 @@ private String getTypeString(int type) {
 	}
 	return hit;
     }
+    private boolean lexAny_(RegexNode root, String[] node, Pattern[] rule, long[][] required, String[] label,
+			    Pattern pattern, Character split) {
+	boolean may=false;
+	for (int ii=0;ii<rule.length && ! may;ii++) may=mayMatch(required[ii]);
+	if (! may) return false; // no node below can match any rule
+	boolean hit=false;
+	RegexNode child=firstChild.nextSibling;
+	if (!ignored && parallel()) {
+	    hit=childrenAll(root,pattern,split,true,c -> c.lexAny_(root,node,rule,required,label,pattern,split));
+	    child=lastChild;
+	}
+	while (child!= lastChild & !ignored) { // last child is not a valid child
+	    if (! child.ignored) {
+		if (child.lexAny_(root,node,rule,required,label,pattern,split)) {
+		    hit=true;
+		};
+	    };
+	    child=child.nextSibling;
+	}
+	if (! ignored && (pattern == null || nodeMatch(root,pattern,split) != null)) {
+	    if (lex_(node,rule,required,label)) hit=true;
+	}
+	return hit;
+    }
+    /**
+      * Hides the matches of the rules in one pass over the text. Each rule keeps its own
+      * matcher, holding the next match of the rule; a match that overlaps text already
+      * hidden is searched again from the end of the hidden text.
+      */
+    private boolean lex_(String[] node, Pattern[] rule, long[][] required, String[] label) {
+	int nn=rule.length;
+	syncOriginal();
+	Matcher[] matchers=new Matcher[nn];
+	int[] next=new int[nn]; // start of the next match of each rule, -1 if none
+	for (int ii=0;ii<nn;ii++) {
+	    next[ii]=-1;
+	    if (this.node.equals(node[ii])) continue; // do not hide if this node has same node name as the proposed child node
+	    if (! textMay(required[ii])) continue;
+	    matchers[ii]=rule[ii].matcher(originalText);
+	    if (matchers[ii].find()) next[ii]=matchers[ii].start();
+	}
+	int len=originalText.length();
+	int pos=0;      // end of the last hidden match
+	int empty=-1;   // position of the last hidden empty match
+	boolean hit=false;
+	while (true) {
+	    int best=-1;
+	    for (int ii=0;ii<nn;ii++) {
+		Matcher m=matchers[ii];
+		while (next[ii] != -1 && (next[ii] < pos || (next[ii] == empty && m.end() == empty))) {
+		    int from=(next[ii] < pos ? pos : pos+1);
+		    next[ii]=(from <= len && m.find(from)) ? m.start() : -1;
+		}
+		if (next[ii] == -1) continue;
+		if (best == -1 || next[ii] < next[best] ||
+		    (next[ii] == next[best] && m.end() > matchers[best].end())) best=ii;
+	    }
+	    if (best == -1) break;
+	    setMatch(matchers[best]);
+	    pos=matchers[best].end();
+	    empty=(pos == next[best] ? pos : -1);
+	    hide_(node[best],label[best],0);
+	    hit=true;
+	}
+	seekDone(); // the next seek starts from the new text
+	return hit;
+    }
+    /**
+      * Repeats hiding the pattern until nothing more is hidden. Each pass is a hideAny pass
+      * over the work list: the nodes whose text changed in the previous pass (the parents of
+      * the new nodes), the new nodes and their group nodes. The ancestors of the work
+      * list are walked through but not searched.
+      */
+    private boolean hideLoop_(String node, String patternText, String label, String groupNode,
+			      String groupLabel, int group, Pattern pattern, Character split) {
+	IdentityHashMap<RegexNode,Boolean> dirty=null; // null in the first pass: search all nodes
+	long[] required=context.patternCache.getRequired(patternText);
+	boolean hit=false;
+	while (true) {
+	    IdentityHashMap<RegexNode,Boolean> walk=(dirty == null ? null : loopWalk(dirty));
+	    ArrayList<RegexNode> found=new ArrayList<RegexNode>();
+	    loopPass_(this,node,patternText,label,required,pattern,split,dirty,walk,found);
+	    if (found.isEmpty()) break;
+	    hit=true;
+	    IdentityHashMap<RegexNode,Boolean> last=new IdentityHashMap<RegexNode,Boolean>();
+	    dirty=new IdentityHashMap<RegexNode,Boolean>();
+	    for (RegexNode child : found) {
+		last.put(child,Boolean.TRUE);
+		dirty.put(child,Boolean.TRUE);
+		dirty.put(child.parentNode,Boolean.TRUE);
+	    }
+	    if (groupNode != null) { // group nodes are made in tree order, as by hideNodeGroup
+		ArrayList<RegexNode> order=new ArrayList<RegexNode>(found.size());
+		loopOrder(loopWalk(last),last,order);
+		for (RegexNode child : order) {
+		    RegexNode groupChild=child.hide_(groupNode,groupLabel,group);
+		    if (groupChild != null) dirty.put(groupChild,Boolean.TRUE);
+		}
+	    }
+	}
+	return hit;
+    }
+    // one pass: the nodes below are searched before the node itself, as in hideAny_
+    private void loopPass_(RegexNode root, String node, String patternText, String label, long[] required,
+			   Pattern pattern, Character split, IdentityHashMap<RegexNode,Boolean> dirty,
+			   IdentityHashMap<RegexNode,Boolean> walk, ArrayList<RegexNode> found) {
+	if (ignored || ! mayMatch(required)) return;
+	RegexNode child=firstChild.nextSibling;
+	while (child != lastChild) { // last child is not a valid child
+	    if (! child.ignored && (walk == null || walk.containsKey(child))) {
+		child.loopPass_(root,node,patternText,label,required,pattern,split,dirty,walk,found);
+	    }
+	    child=child.nextSibling;
+	}
+	if (dirty != null && ! dirty.containsKey(this)) return;
+	if (pattern != null && nodeMatch(root,pattern,split) == null) return;
+	while (seek_(patternText)) {
+	    if (!this.node.equals(node)) { // do not hide if this node has same node name as the proposed child node
+		RegexNode hidden=hide_(node,label,0);
+		if (hidden != null) found.add(hidden);
+	    }
+	}
+    }
+    // the nodes in the work list and their ancestors up to this node
+    private IdentityHashMap<RegexNode,Boolean> loopWalk(IdentityHashMap<RegexNode,Boolean> dirty) {
+	IdentityHashMap<RegexNode,Boolean> walk=new IdentityHashMap<RegexNode,Boolean>();
+	for (RegexNode node : dirty.keySet()) {
+	    while (node != null && walk.put(node,Boolean.TRUE) == null && node != this) {
+		node=node.parentNode;
+	    }
+	}
+	return walk;
+    }
+    // the nodes made in the last pass, parents before children
+    private void loopOrder(IdentityHashMap<RegexNode,Boolean> walk, IdentityHashMap<RegexNode,Boolean> last,
+			   ArrayList<RegexNode> order) {
+	if (last.containsKey(this)) order.add(this);
+	RegexNode child=firstChild.nextSibling;
+	while (child != lastChild) {
+	    if (walk.containsKey(child)) child.loopOrder(walk,last,order);
+	    child=child.nextSibling;
+	}
+    }
     /**
       * Unhides occurences of the specified node name.
       *
@@ -5610,14 +9119,31 @@ private String getTypeString(int type) {
       */
     private boolean unhideAny_(RegexNode root,int targetlevel, Pattern pattern, Character split) {
 	boolean hit=false;
+	RegexNode[] done=null; // children already traversed in parallel, in chain order
+	int nDone=0;
+	if (!ignored && parallel()) {
+	    done=new RegexNode[indexSize(childIndex)];
+	    RegexNode child=firstChild.nextSibling;
+	    while (child != lastChild) {
+		child.marked=false;
+		done[nDone++]=child;
+		child=child.nextSibling;
+	    }
+	    hit=childrenAll(root,pattern,split,true,c -> c.unhideAny_(root,targetlevel,pattern,split));
+	    nDone=0;
+	}
 	RegexNode child=firstChild.nextSibling;
 	while (child!= lastChild & !ignored) { // last child is not a valid child
-	    child.marked=false;
-	    if (! child.ignored) {
-		if (child.unhideAny_(root,targetlevel,pattern,split)) {
-		    hit=true;
+	    if (done != null && nDone < done.length && done[nDone] == child) {
+		nDone++;
+	    } else {
+		child.marked=false;
+		if (! child.ignored) {
+		    if (child.unhideAny_(root,targetlevel,pattern,split)) {
+			hit=true;
+		    };
 		};
-	    };
+	    }
 	    boolean match = (! child.ignored);
             Integer imatch=child.nodeMatch(root,pattern,split);
             if (match & pattern !=null) match=imatch != null;
@@ -5660,37 +9186,51 @@ private String getTypeString(int type) {
 	boolean match = (! ignored);
 	if (match & pattern !=null) match=nodeMatch(root,pattern,split) != null;
 	if (match) {
-	    Plan plan=planReplacement(getText(),parentNodeStartIndex,parentNodeEndIndex);
+	    Plan plan=planReplacement(getText(),getParentStartIndex(),getParentEndIndex());
 	    //System.out.format("Unhiding: %s\n%s\n",plan.toString(),parentNode.toString());
 	    //check();
-	    if (parentNodeStartIndex < 0 || parentNodeEndIndex >  parentNode.resultText.length()) {
+	    if (parentNodeStartIndex < 0 || parentNodeEndIndex >  parentNode.text().length()) {
 		throw new IllegalStateException(String.format("Invalid child index %s\nId:%d %d\n",parentNode.toString(),identification,parentNode.identification));
 	    }
 	    parentNode.swap_(plan);
 	    shiftSiblingChainIndexes(plan);
 	    parentNode.shiftMatchIndexes(plan);
+	    nameIndexedBy=null;
 	    return switchWithChildren(); // move indexes in the child to the parent and unlink
 	} else {
 	    return nextSibling;
 	}
     }
     public String getTextAll_() {
-	//return resulting string
+	StringBuilder res=new StringBuilder();
+	try {
+	    getTextAll(res);
+	} catch (IOException e) { // never thrown by StringBuilder
+	    throw new IllegalStateException(e);
+	}
+	return res.toString();
+    }
+    /**
+      * Writes the resulting text with all hidden text put back in place,
+      * directly into a StringBuilder, Writer etc.
+      *
+      * @param out
+      *        where the text is written.
+      */
+    public void getTextAll(Appendable out) throws IOException {
 	// loop over replacements, starting with lowest
-	String res="";
-	String tt=this.getText();
 	int pos=0;
+	indexFlush(childIndex);
 	RegexNode child=this.firstChild.nextSibling;
 	while (child!=this.lastChild) {
 	    int ss=child.parentNodeStartIndex;
 	    int ee=child.parentNodeEndIndex;
-	    String cc = child.getTextAll_();
-	    res=res + tt.substring(pos,ss) + cc;
+	    out.append(text(),pos,ss);
+	    child.getTextAll(out);
 	    pos=ee;
 	    child=child.nextSibling;
 	}
-	res=res + tt.substring(pos);
-	return res;
+	out.append(text(),pos,text().length());
     }
     public RegexNode unfold_(String slabel,String elabel) { // unfold this node 
 	if (startFoldNode != null || endFoldNode != null) { // || parentNode == null
@@ -5700,10 +9240,10 @@ private String getTypeString(int type) {
 	    slabel=getLabel();
 	}
 	setAttribute("labelFolded",getLabel());
-	RegexNode e=new RegexNode("");
+	RegexNode e=new RegexNode(context,"");
 	e.setNodeName(node+"_");
 	e.setAttribute("matches",getIdentification());
-	int startIndex=parentNodeStartIndex;
+	int startIndex=getParentStartIndex();
 	endFoldNode=e;
 	e.startFoldNode=this;
 	appendSibling_(endFoldNode,elabel);
@@ -5843,8 +9383,8 @@ private String getTypeString(int type) {
 	    sNode.removeAttribute("labelFolded");
 	}
 	sNode.setLabel_("");
-	startIndex=sNode.parentNodeEndIndex;
-	endIndex=eNode.parentNodeStartIndex;
+	startIndex=sNode.getParentEndIndex();
+	endIndex=eNode.getParentStartIndex();
 	RegexNode p=sNode.parentNode;
 	sNode.unlink();
 	RegexNode child=p.hide_(sNode.node,label,startIndex,endIndex,sNode);
@@ -5935,13 +9475,16 @@ private String getTypeString(int type) {
     }
 
     private boolean replaceAll_(RegexNode root,String patternText, String replacementText, int group, int subLevel, 
-				Pattern pattern,Character split) { // replace current match with processed replacement
+				long[] required, Pattern pattern,Character split) { // replace current match with processed replacement
 	//System.out.format("Replace all %s %s\n",identification,patternText);
+	if (! mayMatch(required)) return false; // no node below can match
 	boolean hit=false;
-	if (subLevel != 0  & ! ignored) {
+	if (subLevel != 0  & ! ignored & parallel()) {
+	    hit=childrenAll(root,pattern,split,false,c -> c.replaceAll_(root,patternText,replacementText,group,subLevel-1,required,pattern,split));
+	} else if (subLevel != 0  & ! ignored) {
 	    RegexNode child=firstChild.nextSibling;
 	    while (child != lastChild) { // last child is not a valid child
-		boolean childhit=child.replaceAll_(root,patternText, replacementText, group, subLevel-1,pattern,split);
+		boolean childhit=child.replaceAll_(root,patternText, replacementText, group, subLevel-1,required,pattern,split);
 		if (childhit){hit=childhit;};
 		child=child.nextSibling;
 		//System.out.format("Looping hideAll: %s\n",identification);
@@ -5963,12 +9506,26 @@ private String getTypeString(int type) {
 	boolean doinit=false;
 	if (!doinit) doinit=pattern == null;
 	if (!doinit) doinit=oldPatternString == null;
-	if (!doinit) doinit=! oldPatternString.toString().equals(patternText);
+	if (!doinit) doinit=! oldPatternString.equals(patternText);
 	if (doinit) {
-	    useOriginalString(getText());
-	    pattern=Pattern.compile(patternText);
-	    matcher=pattern.matcher(originalText);
-	    oldPatternString=new StringBuffer(patternText);
+	    Pattern compiled=context.patternCache.get(patternText);
+	    long[] required=context.patternCache.getRequired(patternText);
+	    if (oldPatternString == null && textClean && ! textMay(required)) {
+		return false; // no match possible, and nothing to reset
+	    }
+	    syncOriginal();
+	    pattern=compiled;
+	    if (! textMay(required)) { // the text lacks a character that the pattern needs
+		seekDone();
+		return false;
+	    }
+	    if (matcher == null) {
+		matcher=pattern.matcher(originalText);
+	    } else {
+		matcher.usePattern(pattern).reset(originalText);
+	    }
+	    oldPatternString=patternText;
+	    maskStale();
 	    if(debug) System.out.format("seek Initialising \"%s\" %d\n",pattern.pattern(),matchOffset);
 	};
 	if(debug) System.out.format("seek using pattern: \"%s\" %s\n",patternText,toString());
@@ -5978,26 +9535,7 @@ private String getTypeString(int type) {
     private boolean seek_() {
 	boolean result=matcher.find();
 	if (result) {
-	    matchResultChanged=false;
-	    nMatchGroups=matcher.groupCount();
-	    for (Integer ii=0;ii<=nMatchGroups;ii++) {
-		int s=matcher.start(ii);
-		int e=matcher.end(ii);
-		if (s==-1 & e==-1) {
-		    matchStartIndexShifted.put(ii,matcher.start(ii));
-		    matchEndIndexShifted.put(ii,matcher.end(ii));
-		    matchStartIndexOriginal.put(ii,matcher.start(ii));
-		    matchEndIndexOriginal.put(ii,matcher.end(ii));
-		    matchGroups.put(ii,matcher.group(ii));
-		} else {
-		    matchStartIndexShifted.put(ii,matcher.start(ii)+matchOffset);
-		    matchEndIndexShifted.put(ii,matcher.end(ii)+matchOffset);
-		    matchStartIndexOriginal.put(ii,matcher.start(ii));
-		    matchEndIndexOriginal.put(ii,matcher.end(ii));
-		    matchGroups.put(ii,matcher.group(ii));
-		}
-	    }
-	    matchPos=end(0);
+	    setMatch(matcher);
 	    if(debug) System.out.format("seek Found match %s id=%d (%d %d) 0(%d %d)\n",pattern.pattern(),identification,matcher.start(0),matcher.end(0),startOriginal(0),endOriginal(0));
 	    //System.out.format("Found match %s %d(%d %d) \"%s\"\n",pattern.pattern(),identification,
 	    // 		      matcher.start(0),
@@ -6006,10 +9544,26 @@ private String getTypeString(int type) {
 	} else {
 	    if(debug) System.out.format("seek No match %s %d\n",pattern.pattern(),identification);
 	    //System.out.format("seek_ No match %s %d\n",pattern.pattern(),identification);
-	    oldPatternString=null;
+	    seekDone();
 	};
 	return result;
     }
+    // makes the current match of the matcher (on originalText) the match of this node
+    private void setMatch(Matcher matcher) {
+	matchResultChanged=false;
+	nMatchGroups=matcher.groupCount();
+	match.setSource(originalText);
+	for (int ii=0;ii<=nMatchGroups;ii++) {
+	    int s=matcher.start(ii);
+	    int e=matcher.end(ii);
+	    if (s==-1 & e==-1) {
+		match.set(ii,s,e,s,e);
+	    } else {
+		match.set(ii,s+matchOffset,e+matchOffset,s,e);
+	    }
+	}
+	matchPos=end(0);
+    }
     // concatenate two String arrays
     static public String[] concat(String[] A, String[] B) {
 	int aLen = A.length;
@@ -6043,12 +9597,11 @@ private String getTypeString(int type) {
 	prefix=prefix.replaceAll("\\S*$", "");
 	fileName=fileName.replaceAll("^\\s*", "");
 	fileName=String.format(fileName,filecnt++);
-	FileOutputStream out=null;
+	Writer out=null;
 	try{
 	    System.out.format("%sOutput file: %s\n",prefix,fileName);
-	    out = new FileOutputStream(fileName);
-	    byte[] contentInBytes = toString().getBytes();
-	    out.write(contentInBytes);
+	    out = openWriter(fileName);
+	    dump(out);
 	    out.close();
 	} catch (IOException e) {
 	    System.out.format("Error writing file:%s",fileName);
@@ -6063,12 +9616,27 @@ private String getTypeString(int type) {
 	    }
 	}
     }
+    /**
+      * Write the resulting text of this node (hidden text left out) to file, as UTF-8.
+      */
     public void writeToFile(String fileName) {
-	FileOutputStream out=null;
+	writeToFile(fileName,false);
+    }
+    /**
+      * Write the resulting text of this node to file, as UTF-8.
+      *
+      * @param all
+      *        if true, all hidden text is put back in place while writing (see getTextAll).
+      */
+    public void writeToFile(String fileName, boolean all) {
+	Writer out=null;
 	try{
-	    out = new FileOutputStream(fileName);
-	    byte[] contentInBytes = getText().getBytes();
-	    out.write(contentInBytes);
+	    out = openWriter(fileName);
+	    if (all) {
+		getTextAll(out);
+	    } else {
+		out.append(text());
+	    }
 	    out.close();
 	} catch (IOException e) {
 	    e.printStackTrace();
@@ -6082,12 +9650,20 @@ private String getTypeString(int type) {
 	    }
 	}
     }
+    // the export buffer bounds memory use, whatever the size of the tree
+    private static Writer openWriter(String fileName) throws IOException {
+	return new BufferedWriter(Channels.newWriter(FileChannel.open(Paths.get(fileName),
+								      StandardOpenOption.CREATE,
+								      StandardOpenOption.TRUNCATE_EXISTING,
+								      StandardOpenOption.WRITE),
+						     StandardCharsets.UTF_8.newEncoder(), 1<<16), 1<<16);
+    }
     private int occurences(String str, Character delim) {
 	int num=0; for(int i=0;i<str.length();num+=(str.charAt(i++)==delim?1:0));
 	return num;
     }
     // Prepare string with special characters for use in pattern
-    private String iron(String s) {
+    private static String iron(String s) {
 	s=s.replace("(", "\\(");
 	s=s.replace(")", "\\)");
 	s=s.replace("+", "\\+");
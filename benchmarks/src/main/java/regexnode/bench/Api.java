@@ -0,0 +1,422 @@
+package regexnode.bench;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Reader;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Path;
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+/**
+  * Access to RegexNode from the benchmarks.
+  *
+  * RegexNode lives in the unnamed package, which can not be imported, while JMH
+  * refuses benchmarks in the unnamed package. The calls therefore go through
+  * constant method handles, which the JIT inlines like direct calls.
+  */
+final class Api {
+    private static final Class<?> NODE;
+    private static final Class<?> LEXER;
+    private static final Class<?> RECIPE;
+    private static final Class<?> STORE;
+    private static final Class<?> STORED;
+    private static final MethodHandle NEW;
+    private static final MethodHandle DECODE;
+    private static final MethodHandle DEFINE;
+    private static final MethodHandle DEFINE_VALUE;
+    private static final MethodHandle HIDE_ALL;
+    private static final MethodHandle HIDE_ANY;
+    private static final MethodHandle HIDE_LOOP;
+    private static final MethodHandle HIDE_NODE_GROUP;
+    private static final MethodHandle SET_NODE_NAME_ALL;
+    private static final MethodHandle IGNORE_ALL;
+    private static final MethodHandle UNHIDE_ALL;
+    private static final MethodHandle REPLACE_ALL;
+    private static final MethodHandle GET_NODE;
+    private static final MethodHandle GET_NODE_RESET;
+    private static final MethodHandle GET_TEXT;
+    private static final MethodHandle GET_TEXT_ALL;
+    private static final MethodHandle ENCODE;
+    private static final MethodHandle MAX_IDENTIFICATION;
+    private static final MethodHandle WRITE;
+    private static final MethodHandle READ;
+    private static final MethodHandle WRITE_FILE;
+    private static final MethodHandle READ_FILE;
+    private static final MethodHandle NEW_STORE_WRITER;
+    private static final MethodHandle STORE_WRITER_ADD;
+    private static final MethodHandle STORE_OPEN;
+    private static final MethodHandle STORE_GET_TREE;
+    private static final MethodHandle STORED_GET_NODE;
+    private static final MethodHandle STORED_GET_TEXT;
+    private static final MethodHandle REPLACE_ANCHOR_NAMES;
+    private static final MethodHandle NEW_LEXER;
+    private static final MethodHandle LEXER_RULE;
+    private static final MethodHandle LEX_ALL;
+    private static final MethodHandle NEW_RECIPE;
+    private static final MethodHandle RECIPE_DEFINE;
+    private static final MethodHandle RECIPE_HIDE_ALL;
+    private static final MethodHandle RECIPE_REPLACE_ALL;
+    private static final MethodHandle RECIPE_APPLY;
+    private static final MethodHandle RECIPE_STREAM;
+    static {
+	try {
+	    MethodHandles.Lookup lookup=MethodHandles.publicLookup();
+	    NODE=Class.forName("RegexNode");
+	    LEXER=Class.forName("RegexNode$Lexer");
+	    RECIPE=Class.forName("RegexNode$Recipe");
+	    STORE=Class.forName("RegexNode$Store");
+	    STORED=Class.forName("RegexNode$Stored");
+	    Class<?> writer=Class.forName("RegexNode$StoreWriter");
+	    Class<?> s=String.class;
+	    Class<?> ss=String[].class;
+	    Class<?> c=Character.class;
+	    NEW=lookup.findConstructor(NODE,MethodType.methodType(void.class,s));
+	    DECODE=lookup.findConstructor(NODE,MethodType.methodType(void.class,s,c,c,c));
+	    DEFINE=lookup.findStatic(NODE,"define",MethodType.methodType(void.class,s));
+	    DEFINE_VALUE=lookup.findStatic(NODE,"define",MethodType.methodType(void.class,s,s));
+	    HIDE_ALL=virtual(lookup,"hideAll",NODE,s,s,s,ss);
+	    HIDE_ANY=virtual(lookup,"hideAny",boolean.class,s,s,s,ss);
+	    HIDE_LOOP=virtual(lookup,"hideLoop",boolean.class,s,s,s,s,s,int.class,ss);
+	    HIDE_NODE_GROUP=virtual(lookup,"hideNodeGroup",boolean.class,s,s,int.class,ss);
+	    SET_NODE_NAME_ALL=virtual(lookup,"setNodeNameAll",boolean.class,s,ss);
+	    IGNORE_ALL=virtual(lookup,"ignoreAll",NODE,ss);
+	    UNHIDE_ALL=virtual(lookup,"unhideAll",NODE,ss);
+	    REPLACE_ALL=virtual(lookup,"replaceAll",boolean.class,s,s,ss);
+	    GET_NODE=virtual(lookup,"getNode",NODE,ss);
+	    GET_NODE_RESET=virtual(lookup,"getNodeReset",void.class,ss);
+	    GET_TEXT=virtual(lookup,"getText",s);
+	    GET_TEXT_ALL=virtual(lookup,"getTextAll",void.class,Appendable.class);
+	    ENCODE=virtual(lookup,"encode",s);
+	    MAX_IDENTIFICATION=virtual(lookup,"getMaxIdentification",int.class);
+	    WRITE=virtual(lookup,"write",void.class,DataOutput.class);
+	    READ=lookup.findStatic(NODE,"read",MethodType.methodType(NODE,DataInput.class));
+	    WRITE_FILE=virtual(lookup,"write",void.class,Path.class);
+	    READ_FILE=lookup.findStatic(NODE,"read",MethodType.methodType(NODE,Path.class));
+	    NEW_STORE_WRITER=lookup.findConstructor(writer,MethodType.methodType(void.class,Path.class))
+		.asType(MethodType.methodType(AutoCloseable.class,Path.class));
+	    MethodHandle add=lookup.findVirtual(writer,"add",MethodType.methodType(int.class,NODE));
+	    STORE_WRITER_ADD=add.asType(MethodType.methodType(int.class,AutoCloseable.class,Object.class));
+	    STORE_OPEN=lookup.findStatic(STORE,"open",MethodType.methodType(STORE,Path.class))
+		.asType(MethodType.methodType(AutoCloseable.class,Path.class));
+	    MethodHandle getTree=lookup.findVirtual(STORE,"getTree",MethodType.methodType(STORED,int.class));
+	    STORE_GET_TREE=getTree.asType(MethodType.methodType(Object.class,AutoCloseable.class,int.class));
+	    MethodHandle storedGetNode=lookup.findVirtual(STORED,"getNode",MethodType.methodType(STORED,ss)).asFixedArity();
+	    STORED_GET_NODE=storedGetNode.asType(MethodType.methodType(Object.class,Object.class,ss));
+	    MethodHandle storedGetText=lookup.findVirtual(STORED,"getText",MethodType.methodType(s));
+	    STORED_GET_TEXT=storedGetText.asType(MethodType.methodType(s,Object.class));
+	    REPLACE_ANCHOR_NAMES=virtual(lookup,"replaceAnchorNames",s,s);
+	    NEW_LEXER=lookup.findConstructor(LEXER,MethodType.methodType(void.class));
+	    MethodHandle rule=lookup.findVirtual(LEXER,"rule",MethodType.methodType(LEXER,s,s,s));
+	    LEXER_RULE=rule.asType(rule.type().changeParameterType(0,Object.class));
+	    MethodHandle lexAll=virtual(lookup,"lexAll",NODE,LEXER,ss);
+	    LEX_ALL=lexAll.asType(lexAll.type().changeParameterType(1,Object.class));
+	    NEW_RECIPE=lookup.findConstructor(RECIPE,MethodType.methodType(void.class));
+	    RECIPE_DEFINE=recipe(lookup,"define",RECIPE,s);
+	    RECIPE_HIDE_ALL=recipe(lookup,"hideAll",RECIPE,s,s,s,ss);
+	    RECIPE_REPLACE_ALL=recipe(lookup,"replaceAll",RECIPE,s,s,ss);
+	    RECIPE_APPLY=recipe(lookup,"apply",NODE,s);
+	    RECIPE_STREAM=recipe(lookup,"stream",long.class,Reader.class,Appendable.class,s,int.class);
+	} catch (ReflectiveOperationException e) {
+	    throw new ExceptionInInitializerError(e);
+	}
+    }
+    // handle taking (Object node, args...), with any varargs passed as an array
+    private static MethodHandle virtual(MethodHandles.Lookup lookup, String name, Class<?> ret, Class<?>... args)
+	throws ReflectiveOperationException {
+	MethodHandle mh=lookup.findVirtual(NODE,name,MethodType.methodType(ret,args)).asFixedArity();
+	return mh.asType(mh.type().changeParameterType(0,Object.class));
+    }
+    // handle taking (Object recipe, args...)
+    private static MethodHandle recipe(MethodHandles.Lookup lookup, String name, Class<?> ret, Class<?>... args)
+	throws ReflectiveOperationException {
+	MethodHandle mh=lookup.findVirtual(RECIPE,name,MethodType.methodType(ret,args)).asFixedArity();
+	return mh.asType(mh.type().changeParameterType(0,Object.class));
+    }
+    private static RuntimeException fail(Throwable t) {
+	if (t instanceof RuntimeException) return (RuntimeException) t;
+	if (t instanceof Error) throw (Error) t;
+	return new IllegalStateException(t);
+    }
+    private Api() {
+    }
+
+    static Object create(String text) {
+	try {
+	    return NEW.invoke(text);
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+    static Object decode(String text, char o, char d, char a) {
+	try {
+	    return DECODE.invoke(text,Character.valueOf(o),Character.valueOf(d),Character.valueOf(a));
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+    static void define(String anchorName) {
+	try {
+	    DEFINE.invoke(anchorName);
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+    static void define(String anchorName, String anchorValue) {
+	try {
+	    DEFINE_VALUE.invoke(anchorName,anchorValue);
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+    static Object hideAll(Object node, String name, String pattern, String label, String... path) {
+	try {
+	    return HIDE_ALL.invoke(node,name,pattern,label,path);
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+    static boolean hideAny(Object node, String name, String pattern, String label, String... path) {
+	try {
+	    return (boolean) HIDE_ANY.invoke(node,name,pattern,label,path);
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+    static boolean hideLoop(Object node, String name, String pattern, String label,
+			    String groupName, String groupLabel, int group, String... path) {
+	try {
+	    return (boolean) HIDE_LOOP.invoke(node,name,pattern,label,groupName,groupLabel,group,path);
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+    static boolean hideNodeGroup(Object node, String name, String label, int group, String... path) {
+	try {
+	    return (boolean) HIDE_NODE_GROUP.invoke(node,name,label,group,path);
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+    static boolean setNodeNameAll(Object node, String name, String... path) {
+	try {
+	    return (boolean) SET_NODE_NAME_ALL.invoke(node,name,path);
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+    static Object ignoreAll(Object node, String... path) {
+	try {
+	    return IGNORE_ALL.invoke(node,path);
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+    static Object unhideAll(Object node, String... path) {
+	try {
+	    return UNHIDE_ALL.invoke(node,path);
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+    static boolean replaceAll(Object node, String pattern, String replacement, String... path) {
+	try {
+	    return (boolean) REPLACE_ALL.invoke(node,pattern,replacement,path);
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+    static Object getNode(Object node, String... path) {
+	try {
+	    return GET_NODE.invoke(node,path);
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+    static void getNodeReset(Object node, String... path) {
+	try {
+	    GET_NODE_RESET.invoke(node,path);
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+    static String getText(Object node) {
+	try {
+	    return (String) GET_TEXT.invoke(node);
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+    static void getTextAll(Object node, Appendable out) {
+	try {
+	    GET_TEXT_ALL.invoke(node,out);
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+    static String encode(Object node) {
+	try {
+	    return (String) ENCODE.invoke(node);
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+    static int getMaxIdentification(Object node) {
+	try {
+	    return (int) MAX_IDENTIFICATION.invoke(node);
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+    static void write(Object node, DataOutput out) {
+	try {
+	    WRITE.invoke(node,out);
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+    static Object read(DataInput in) {
+	try {
+	    return READ.invoke(in);
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+    static Object recipe() {
+	try {
+	    return NEW_RECIPE.invoke();
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+    static void recipeDefine(Object recipe, String anchorName) {
+	try {
+	    Object self=RECIPE_DEFINE.invoke(recipe,anchorName);
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+    static void recipeHideAll(Object recipe, String name, String pattern, String label, String... path) {
+	try {
+	    Object self=RECIPE_HIDE_ALL.invoke(recipe,name,pattern,label,path);
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+    static void recipeReplaceAll(Object recipe, String pattern, String replacement, String... path) {
+	try {
+	    Object self=RECIPE_REPLACE_ALL.invoke(recipe,pattern,replacement,path);
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+    static Object recipeApply(Object recipe, String text) {
+	try {
+	    return RECIPE_APPLY.invoke(recipe,text);
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+    static long recipeStream(Object recipe, Reader in, Appendable out, String delimiter, int chunkSize) {
+	try {
+	    return (long) RECIPE_STREAM.invoke(recipe,in,out,delimiter,chunkSize);
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+    static void write(Object node, Path file) {
+	try {
+	    WRITE_FILE.invoke(node,file);
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+    static Object read(Path file) {
+	try {
+	    return READ_FILE.invoke(file);
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+    /**
+      * A RegexNode.StoreWriter, which adds trees to a store file.
+      */
+    static AutoCloseable storeWriter(Path file) {
+	try {
+	    return (AutoCloseable) NEW_STORE_WRITER.invoke(file);
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+    static int storeAdd(AutoCloseable writer, Object tree) {
+	try {
+	    return (int) STORE_WRITER_ADD.invoke(writer,tree);
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+    static AutoCloseable openStore(Path file) {
+	try {
+	    return (AutoCloseable) STORE_OPEN.invoke(file);
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+    static Object getTree(AutoCloseable store, int tree) {
+	try {
+	    return STORE_GET_TREE.invoke(store,tree);
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+    static Object storedGetNode(Object stored, String... path) {
+	try {
+	    return STORED_GET_NODE.invoke(stored,path);
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+    static String storedGetText(Object stored) {
+	try {
+	    return (String) STORED_GET_TEXT.invoke(stored);
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+    static String replaceAnchorNames(Object node, String text) {
+	try {
+	    return (String) REPLACE_ANCHOR_NAMES.invoke(node,text);
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+    static Object lexer(String[][] rules) {
+	try {
+	    Object lexer=NEW_LEXER.invoke();
+	    for (String[] rule : rules) LEXER_RULE.invoke(lexer,rule[0],rule[1],rule[2]);
+	    return lexer;
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+    static Object lexAll(Object node, Object lexer, String... path) {
+	try {
+	    return LEX_ALL.invoke(node,lexer,path);
+	} catch (Throwable t) {
+	    throw fail(t);
+	}
+    }
+}
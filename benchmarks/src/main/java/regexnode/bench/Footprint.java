@@ -0,0 +1,74 @@
+package regexnode.bench;
+
+import java.util.function.IntFunction;
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+/**
+  * Retained heap of trees built from the Inputs texts, per node and per input character.
+  * JMH measures time, not memory, so this is a plain program:
+  *
+  *   java -cp benchmarks/target/benchmarks.jar regexnode.bench.Footprint [scale]
+  *
+  * Each case builds "copies" trees (so that the heap delta is well above the noise),
+  * and measures the used heap after garbage collection before and after. The input
+  * texts are made before the first measurement, so only what the trees hold is counted.
+  */
+public final class Footprint {
+    private static final int copies=5;
+
+    private Footprint() {
+    }
+    public static void main(String[] args) {
+	int scale=(args.length > 0 ? Integer.parseInt(args[0]) : 1);
+	Inputs.defineAnchors();
+	System.out.format("%-24s %8s %10s %10s %10s\n","case","nodes","MB","bytes/node","bytes/char");
+	final String ab=leaves(20000*scale);
+	measure("leaves 20000",ab,ii -> Api.hideAll(Api.create(ab),"ab","ab","#","*"));
+	final String strings=Inputs.strings(200000*scale,2000*scale);
+	measure("strings 2000",strings,ii -> Api.hideAll(Api.create(strings),"string",Inputs.STRING,"<String>","*"));
+	final String source=Inputs.source(2000*scale);
+	measure("lex 2000 lines",source,ii -> Inputs.lex(source));
+	measure("brackets 300x8",Inputs.brackets(300*scale,8),ii -> Inputs.bracketTree(300*scale,8));
+    }
+    // "ab ab ab ...", one leaf per "ab" when hidden
+    private static String leaves(int count) {
+	StringBuilder sb=new StringBuilder(3*count);
+	for (int ii=0;ii<count;ii++) sb.append("ab ");
+	return sb.toString();
+    }
+    private static void measure(String name, String text, IntFunction<Object> build) {
+	build.apply(-1); // warm up, and make the patterns and anchors shared by all copies
+	Object[] trees=new Object[copies];
+	long before=used();
+	int firstId=Api.getMaxIdentification(build.apply(-1));
+	for (int ii=0;ii<copies;ii++) trees[ii]=build.apply(ii);
+	long after=used();
+	long nodes=(long)(Api.getMaxIdentification(trees[copies-1])-firstId)/copies;
+	double bytes=(after-before)/(double)copies;
+	System.out.format("%-24s %8d %10.1f %10.1f %10.2f\n",name,nodes,bytes/1048576,bytes/nodes,bytes/text.length());
+	if (trees[0] == null) throw new IllegalStateException(); // keep the trees until here
+    }
+    private static long used() {
+	Runtime rt=Runtime.getRuntime();
+	long used=Long.MAX_VALUE;
+	for (int ii=0;ii<5;ii++) { // until the heap stops shrinking
+	    System.gc();
+	    long now=rt.totalMemory()-rt.freeMemory();
+	    if (now >= used) break;
+	    used=now;
+	}
+	return used;
+    }
+}
@@ -0,0 +1,82 @@
+package regexnode.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+/**
+  * hideAll, replaceAll and unhideAll over a flat text with siblings quoted strings.
+  * The operations change the tree, so each invocation gets a fresh tree.
+  */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HideBench {
+    @Param({"10000", "1000000"})
+    int textSize;
+    @Param({"10", "1000", "10000"})
+    int siblings;
+
+    String text;
+    Object plain;  // no hidden nodes
+    Object hidden; // strings hidden
+
+    @Setup(Level.Trial)
+    public void trial() {
+	Inputs.defineAnchors();
+	text=Inputs.strings(textSize,siblings);
+    }
+    @Setup(Level.Invocation)
+    public void invocation() {
+	plain=Api.create(text);
+	hidden=Api.hideAll(Api.create(text), "string", Inputs.STRING, "<String>", "*");
+    }
+
+    @Benchmark
+    public Object hideAll() {
+	return Api.hideAll(plain, "string", Inputs.STRING, "<String>", "*");
+    }
+    @Benchmark
+    public boolean replaceAll() {
+	return Api.replaceAll(plain, "str(\\d+)", "$1rts");
+    }
+    @Benchmark
+    public boolean replaceAllTemplate() {
+	return Api.replaceAll(plain, "(s)(t)(r)(\\d+)", "<$4:$3$2$1> \\$$4 ($1$2$3$4)");
+    }
+    @Benchmark
+    public boolean replaceAllHidden() {
+	return Api.replaceAll(hidden, "str(\\d+)", "$1rts", "...", "string");
+    }
+    @Benchmark
+    public Object unhideAll() {
+	return Api.unhideAll(hidden, "*");
+    }
+}
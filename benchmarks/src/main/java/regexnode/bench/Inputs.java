@@ -0,0 +1,179 @@
+package regexnode.bench;
+
+import java.util.Random;
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+/**
+  * Synthetic inputs for the benchmarks. All inputs are generated from a fixed seed,
+  * so every run sees the same text.
+  */
+final class Inputs {
+    static final String STRING = "([\\\"\\\'])[^\\\"\\\'\\n]*\\1";
+    static final String BRACKETS = "(?m)(?i)\\(([^\\(\\)<Content>]*)\\)";
+
+    private Inputs() {
+    }
+    static void defineAnchors() {
+	Api.define("< >",        "[ \\t]*");
+	Api.define("<#>",        "[^\\n]*");
+	Api.define("<String>");
+	Api.define("<Brackets>");
+	Api.define("<Content>");
+    }
+    /**
+      * Plain text of about textSize characters, with siblings quoted strings spread evenly.
+      */
+    static String strings(int textSize, int siblings) {
+	StringBuilder sb=new StringBuilder(textSize+16*siblings);
+	Random r=new Random(42);
+	int gap=Math.max(1,textSize/Math.max(1,siblings));
+	for (int ii=0;ii<siblings;ii++) {
+	    filler(sb,gap,r);
+	    sb.append(ii%2==0 ? '\'' : '"').append("str").append(ii).append(ii%2==0 ? '\'' : '"');
+	}
+	filler(sb,Math.max(0,textSize-sb.length()),r);
+	return sb.toString();
+    }
+    /**
+      * Text with siblings bracket groups, each nested depth levels deep, e.g. "x((y))".
+      */
+    static String brackets(int siblings, int depth) {
+	StringBuilder sb=new StringBuilder();
+	for (int ii=0;ii<siblings;ii++) {
+	    sb.append("x").append(ii).append(' ');
+	    for (int jj=0;jj<depth;jj++) sb.append("(a").append(jj).append('+');
+	    sb.append('y');
+	    for (int jj=0;jj<depth;jj++) sb.append(')');
+	    sb.append('\n');
+	}
+	return sb.toString();
+    }
+    /**
+      * Tree built from brackets(siblings,depth), with one "Brackets" and one "content"
+      * node per bracket level, the way Example9 does it.
+      */
+    static Object bracketTree(int siblings, int depth) {
+	Object regex=Api.create(brackets(siblings,depth));
+	while (Api.hideAny(regex, "_Brackets", BRACKETS, "<Brackets>", "*")) {
+	    Api.hideNodeGroup(regex, "content", "<Content>", 1, "*", "_Brackets");
+	    Api.setNodeNameAll(regex, "Brackets", "*", "_Brackets");
+	}
+	return regex;
+    }
+    /**
+      * The same tree as bracketTree, made by one hideLoop call.
+      */
+    static Object bracketTreeLoop(int siblings, int depth) {
+	Object regex=Api.create(brackets(siblings,depth));
+	Api.hideLoop(regex, "Brackets", BRACKETS, "<Brackets>", "content", "<Content>", 1, "*");
+	return regex;
+    }
+    /**
+      * Fortran-like source code, lines*2 lines or so, with strings, comments,
+      * continuation lines and nested brackets.
+      */
+    static String source(int lines) {
+	StringBuilder sb=new StringBuilder();
+	for (int ii=0;ii<lines;ii++) {
+	    sb.append("      x").append(ii).append(" = foo(a, (b+c)*(d-(e+f))) ! comment 'q' ").append(ii).append("\n");
+	    if (ii % 7 == 0) sb.append("c full line comment ").append(ii).append("\n");
+	    sb.append("      call bar('str").append(ii).append("', \"s2\"); y=1\n");
+	    if (ii % 5 == 0) sb.append("     & continued (x)\n");
+	}
+	return sb.toString();
+    }
+    /**
+      * The Example9 lexing steps: hide strings, comments, continuation lines
+      * and statement separators, then hide nested brackets from the inside out.
+      */
+    static Object lex(String source) {
+	Object regex=Api.create(source);
+	Api.hideAll(regex, "string",       STRING,                      "<String>", "*");
+	Api.hideAll(regex, "comment",      "(?m)^[cC]<#>\n",            "\n", "*");
+	Api.hideAll(regex, "comment",      "(?m)^< >!.*\n",             "\n", "*");
+	Api.hideAll(regex, "comment",      "(?m)!.*\n",                 "\n", "*");
+	Api.hideAll(regex, "continuation", "(?m)\\n[ ]{5}[^\\d ]",      " ", "*");
+	Api.hideAll(regex, "continuation", "(?m)\\&[ \t]*\\n[ \t]*\\&", " ", "*");
+	Api.hideAll(regex, "semicolon",    ";",                         "\n","*");
+	Api.ignoreAll(regex, "string");
+	Api.ignoreAll(regex, "comment");
+	while (Api.hideAny(regex, "_Brackets", BRACKETS, "<Brackets>", "*")) {
+	    Api.hideNodeGroup(regex, "content", "<Content>", 1, "*", "_Brackets");
+	    Api.setNodeNameAll(regex, "Brackets", "*", "_Brackets");
+	}
+	return regex;
+    }
+    /**
+      * Token rules (node name, pattern, label) for the source code, chosen so that one
+      * rule does not need the labels left by another; comments leave the newline.
+      */
+    static final String[][] TOKENS={
+	{"string",        STRING,                    "<String>"},
+	{"comment",       "(?m)^[cC]<#>(?=\\n)",     ""},
+	{"comment",       "(?m)!.*$",                ""},
+	{"continuation",  "(?m)\\n[ ]{5}[^\\d ]",    " "},
+	{"semicolon",     ";",                       "\n"},
+    };
+    /**
+      * The TOKENS rules as a chain of hideAll calls.
+      */
+    static Object tokensChained(String source) {
+	Object regex=Api.create(source);
+	for (String[] rule : TOKENS) Api.hideAll(regex, rule[0], rule[1], rule[2], "*");
+	return regex;
+    }
+    /**
+      * The TOKENS rules in one lexAll pass.
+      */
+    static Object tokensLexer(String source, Object lexer) {
+	Object regex=Api.create(source);
+	Api.lexAll(regex, lexer, "*");
+	return regex;
+    }
+    /**
+      * Defines anchors anchor names "<anchorN>", and returns a text of about textSize
+      * characters where the names are used round robin.
+      */
+    static String anchorText(int anchors, int textSize) {
+	for (int ii=0;ii<anchors;ii++) Api.define("<anchor"+ii+">");
+	StringBuilder sb=new StringBuilder(textSize+32);
+	Random r=new Random(42);
+	int ii=0;
+	while (sb.length() < textSize) {
+	    filler(sb,20,r);
+	    sb.append("<anchor").append(ii++%anchors).append('>');
+	}
+	return sb.toString();
+    }
+    /**
+      * Log file of lines records, some with indented continuation lines and quoted strings.
+      */
+    static String log(int lines) {
+	StringBuilder sb=new StringBuilder(lines*64);
+	Random r=new Random(42);
+	for (int ii=0;ii<lines;ii++) {
+	    sb.append("2024-01-01 12:").append(ii%60).append(" INFO job ").append(ii)
+		.append(" user='u").append(r.nextInt(100)).append("' took ").append(r.nextInt(1000)).append(" ms\n");
+	    if (ii % 10 == 0) sb.append("    at frame ").append(ii).append(" \"detail\"\n");
+	}
+	return sb.toString();
+    }
+    private static void filler(StringBuilder sb, int len, Random r) {
+	for (int ii=0;ii<len;ii++) {
+	    int c=r.nextInt(30);
+	    sb.append(c < 26 ? (char)('a'+c) : (c < 28 ? ' ' : (c == 28 ? '\n' : '<')));
+	}
+    }
+}
@@ -0,0 +1,69 @@
+package regexnode.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+/**
+  * The Example9 source code lexing, on generated Fortran-like source of the given length,
+  * followed by putting the text back together again.
+  */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LexBench {
+    @Param({"100", "2000"})
+    int lines;
+
+    String source;
+    Object regex;
+
+    @Setup(Level.Trial)
+    public void trial() {
+	Inputs.defineAnchors();
+	source=Inputs.source(lines);
+	regex=Inputs.lex(source);
+    }
+
+    @Benchmark
+    public Object lex() {
+	return Inputs.lex(source);
+    }
+    @Benchmark
+    public int lexTextAll() {
+	StringBuilder sb=new StringBuilder();
+	Api.getTextAll(Inputs.lex(source),sb);
+	return sb.length();
+    }
+    @Benchmark
+    public Object lexUnhideAll() {
+	return Api.unhideAll(Inputs.lex(source), "...");
+    }
+}
@@ -0,0 +1,63 @@
+package regexnode.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+/**
+  * Hiding the Inputs.TOKENS strings, comments, continuation lines and semicolons,
+  * with one hideAll call per rule against one lexAll pass over the text.
+  */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LexerBench {
+    @Param({"100", "2000"})
+    int lines;
+
+    String source;
+    Object lexer;
+
+    @Setup(Level.Trial)
+    public void trial() {
+	Inputs.defineAnchors();
+	source=Inputs.source(lines);
+	lexer=Api.lexer(Inputs.TOKENS);
+    }
+
+    @Benchmark
+    public Object chained() {
+	return Inputs.tokensChained(source);
+    }
+    @Benchmark
+    public Object lexer() {
+	return Inputs.tokensLexer(source,lexer);
+    }
+}
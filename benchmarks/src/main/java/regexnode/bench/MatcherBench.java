@@ -0,0 +1,81 @@
+package regexnode.bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+/**
+  * Matcher throughput on one large text. The regex engine calls charAt for every
+  * character it looks at, and each call on a StringBuffer takes its lock.
+  */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatcherBench {
+    @Param({"100000", "1000000"})
+    int textSize;
+
+    static final Pattern PATTERN=Pattern.compile("[@\"]str(\\d+)");
+
+    String string;
+    StringBuffer buffer;
+    Object node;
+
+    @Setup(Level.Trial)
+    public void trial() {
+	Inputs.defineAnchors();
+	string=Inputs.strings(textSize,textSize/100);
+	buffer=new StringBuffer(string);
+	node=Api.create(string);
+    }
+
+    @Benchmark
+    public int stringBuffer() {
+	return count(PATTERN.matcher(buffer));
+    }
+    @Benchmark
+    public int string() {
+	return count(PATTERN.matcher(string));
+    }
+    /**
+      * A search of the node that finds nothing, so the node stays the same.
+      */
+    @Benchmark
+    public boolean node() {
+	return Api.replaceAll(node, "[@]str(\\d+)", "x");
+    }
+    private static int count(Matcher matcher) {
+	int n=0;
+	while (matcher.find()) n++;
+	return n;
+    }
+}
@@ -0,0 +1,76 @@
+package regexnode.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+/**
+  * hideAll and replaceAll of a pattern that matches nowhere in the Example9 tree. With
+  * a literal "@" the nodes are skipped on their character masks; "[@]" requires no known
+  * character, so every node is searched. "<Pragma>" is an anchor that is defined but
+  * not used in the text, so nodes holding other anchors are skipped too.
+  */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrefilterBench {
+    @Param({"100", "2000"})
+    int lines;
+
+    Object tree;
+
+    @Setup(Level.Trial)
+    public void trial() {
+	Inputs.defineAnchors();
+	Api.define("<Pragma>");
+	tree=Inputs.lex(Inputs.source(lines));
+    }
+
+    @Benchmark
+    public Object hideLiteral() {
+	return Api.hideAll(tree, "pragma", "@\\w+", "#", "*");
+    }
+    @Benchmark
+    public Object hideClass() {
+	return Api.hideAll(tree, "pragma", "[@]\\w+", "#", "*");
+    }
+    @Benchmark
+    public Object hideAnchor() {
+	return Api.hideAll(tree, "pragma", "<Pragma>\\w+", "#", "*");
+    }
+    @Benchmark
+    public boolean replaceLiteral() {
+	return Api.replaceAll(tree, "@\\w+", "x", "*");
+    }
+    @Benchmark
+    public boolean replaceClass() {
+	return Api.replaceAll(tree, "[@]\\w+", "x", "*");
+    }
+}
@@ -0,0 +1,93 @@
+package regexnode.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+/**
+  * Looking up one node in one of "trees" lexed source files, either by reading the
+  * tree from its own binary file, or through a view of a mapped store with all the trees.
+  */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StoreBench {
+    @Param({"100"})
+    int trees;
+    @Param({"100", "1000"})
+    int lines;
+
+    Path dir;
+    Path[] files;
+    AutoCloseable store;
+    int next;
+
+    @Setup(Level.Trial)
+    public void trial() throws IOException {
+	Inputs.defineAnchors();
+	dir=Files.createTempDirectory("storebench");
+	files=new Path[trees];
+	try (AutoCloseable writer=Api.storeWriter(dir.resolve("trees.store"))) {
+	    for (int ii=0;ii<trees;ii++) {
+		Object regex=Inputs.lex(Inputs.source(lines));
+		files[ii]=dir.resolve("tree"+ii+".bin");
+		Api.write(regex,files[ii]);
+		Api.storeAdd(writer,regex);
+	    }
+	} catch (Exception e) {
+	    throw new IOException(e);
+	}
+	store=Api.openStore(dir.resolve("trees.store"));
+    }
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+	store.close();
+	for (Path file : files) Files.delete(file);
+	Files.delete(dir.resolve("trees.store"));
+	Files.delete(dir);
+    }
+
+    @Benchmark
+    public String readFile() {
+	next=(next+1)%trees;
+	Object regex=Api.read(files[next]);
+	return Api.getText(Api.getNode(regex, "...", "string"));
+    }
+    @Benchmark
+    public String mapped() {
+	next=(next+1)%trees;
+	Object tree=Api.getTree(store,next);
+	return Api.storedGetText(Api.storedGetNode(tree, "...", "string"));
+    }
+}
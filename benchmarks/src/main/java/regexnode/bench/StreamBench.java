@@ -0,0 +1,94 @@
+package regexnode.bench;
+
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+/**
+  * A hide/replace recipe over a log file of "lines" records, run on the whole
+  * text at once or streamed in chunks of chunkSize characters.
+  */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamBench {
+    @Param({"10000"})
+    int lines;
+    @Param({"65536"})
+    int chunkSize;
+
+    String text;
+    Object recipe;
+
+    // counts the characters written
+    static final class Sink extends Writer {
+	long count;
+	@Override
+	public void write(char[] cbuf, int off, int len) {
+	    count=count+len;
+	}
+	@Override
+	public Writer append(CharSequence csq, int start, int end) {
+	    count=count+end-start;
+	    return this;
+	}
+	@Override
+	public void flush() {
+	}
+	@Override
+	public void close() {
+	}
+    }
+
+    @Setup(Level.Trial)
+    public void trial() {
+	text=Inputs.log(lines);
+	recipe=Api.recipe();
+	Api.recipeDefine(recipe,"<String>");
+	Api.recipeHideAll(recipe, "string", Inputs.STRING, "<String>", "*");
+	Api.recipeReplaceAll(recipe, "INFO", "I", "*");
+	Api.recipeReplaceAll(recipe, "u(\\d+)", "user$1", "...", "string");
+    }
+
+    @Benchmark
+    public long whole() throws Exception {
+	Sink out=new Sink();
+	Api.getTextAll(Api.recipeApply(recipe,text),out);
+	return out.count;
+    }
+    @Benchmark
+    public long stream() {
+	Sink out=new Sink();
+	Api.recipeStream(recipe,new StringReader(text),out,"\\n(?=\\S)",chunkSize);
+	return out.count;
+    }
+}
@@ -0,0 +1,98 @@
+package regexnode.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+/**
+  * Read only operations on a tree of siblings bracket groups, nested depth levels deep.
+  */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TreeBench {
+    @Param({"10", "300"})
+    int siblings;
+    @Param({"1", "8", "32"})
+    int depth;
+
+    Object regex;
+    String encoded;
+    byte[] written;
+
+    @Setup(Level.Trial)
+    public void trial() {
+	Inputs.defineAnchors();
+	regex=Inputs.bracketTree(siblings,depth);
+	encoded=Api.encode(regex);
+	written=write();
+    }
+
+    @Benchmark
+    public int getNodeAll() {
+	int cnt=0;
+	while (Api.getNode(regex, "...", "content") != null) cnt++;
+	return cnt;
+    }
+    @Benchmark
+    public int getNodeFirst() {
+	int cnt=Api.getNode(regex, "...", "content") == null ? 0 : 1;
+	Api.getNodeReset(regex, "...", "content");
+	return cnt;
+    }
+    @Benchmark
+    public int getTextAll() {
+	StringBuilder sb=new StringBuilder();
+	Api.getTextAll(regex,sb);
+	return sb.length();
+    }
+    @Benchmark
+    public String encode() {
+	return Api.encode(regex);
+    }
+    @Benchmark
+    public Object decode() {
+	return Api.decode(encoded,':',';','¤');
+    }
+    @Benchmark
+    public byte[] write() {
+	ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+	Api.write(regex,new DataOutputStream(bytes));
+	return bytes.toByteArray();
+    }
+    @Benchmark
+    public Object read() {
+	return Api.read(new DataInputStream(new ByteArrayInputStream(written)));
+    }
+}